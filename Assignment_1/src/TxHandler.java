@@ -80,8 +80,6 @@ public class TxHandler {
         if (transactionFee < 0) {
             System.out.println("Outputs higher than inputs");
             return false;
-        } else {
-            System.out.println("Transaction fee: " + transactionFee);
         }
 
         return true;
@@ -0,0 +1,86 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transactions per second admitted one at a time, as {@code BlockHandler.processTx} does, by 1, 2, 4
+ * and 8 producer threads into one pool, while another thread keeps taking snapshots of the best
+ * transactions as a block builder would. Every transaction spends its own funding output, so adds
+ * only contend inside the pool. Signatures are checked once up front and then hit the shared cache,
+ * so the pool and the lookups are what is timed. Run with
+ * {@code java -cp <classes> ConcurrentPoolBenchmark [transactions]}.
+ */
+public class ConcurrentPoolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        KeyPair owner = keyGen.genKeyPair();
+        KeyPair to = keyGen.genKeyPair();
+
+        Transaction funding = new Transaction();
+        for (int i = 0; i < n; i++)
+            funding.addOutput(Transaction.COIN, owner.getPublic());
+        funding.finalize();
+        UTXOPool tip = new UTXOPool();
+        for (int i = 0; i < n; i++)
+            tip.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+
+        Transaction[] txs = new Transaction[n];
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        for (int i = 0; i < n; i++) {
+            Transaction tx = new Transaction();
+            tx.addInput(funding.getHash(), i);
+            tx.addOutput(Transaction.COIN - 1 - i % 1000, to.getPublic());
+            signer.initSign(owner.getPrivate());
+            signer.update(tx.getRawDataToSign(0));
+            tx.addSignature(signer.sign(), 0);
+            tx.finalize();
+            txs[i] = tx;
+        }
+
+        SignatureCache cache = new SignatureCache(2 * n);
+        new MempoolAdmission(new TransactionPool(), null, cache, new RejectionCounters()).admit(tip, txs);
+
+        for (int round = 0; round < 3; round++)
+            for (int threads = 1; threads <= 8; threads *= 2)
+                run(tip, txs, cache, threads);
+    }
+
+    private static void run(UTXOPool tip, Transaction[] txs, SignatureCache cache, int threads)
+            throws Exception {
+        TransactionPool pool = new TransactionPool();
+        MempoolAdmission admission = new MempoolAdmission(pool, null, cache, new RejectionCounters());
+        AtomicInteger next = new AtomicInteger();
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+            producers[t] = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < txs.length)
+                    admission.admit(tip, new Transaction[] { txs[i] });
+            });
+
+        AtomicInteger snapshots = new AtomicInteger();
+        Thread builder = new Thread(() -> {
+            while (next.get() < txs.length) {
+                pool.getTopTransactions(BlockHandler.MAX_BLOCK_TRANSACTIONS);
+                snapshots.incrementAndGet();
+            }
+        });
+
+        long start = System.nanoTime();
+        for (Thread producer : producers)
+            producer.start();
+        builder.start();
+        for (Thread producer : producers)
+            producer.join();
+        long nanos = System.nanoTime() - start;
+        builder.join();
+
+        System.out.printf("%d threads %8d pooled %10.0f tx/s %6d snapshots%n", threads, pool.size(),
+                txs.length / (nanos / 1e9), snapshots.get());
+    }
+}
@@ -0,0 +1,108 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Fees captured and selection time of {@code TxHandler} against {@code MaxFeeTxHandler} on a batch
+ * of signed transactions where many claim the same outputs and some spend each other. Signatures
+ * are checked once up front so both handlers then hit the shared cache and only selection is timed.
+ * Run with {@code java -cp <classes> MaxFeeBenchmark [transactions]}.
+ */
+public class MaxFeeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        Random random = new Random(42);
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        KeyPair[] keys = new KeyPair[8];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = keyGen.genKeyPair();
+
+        // Fund half as many outputs as there are transactions, so many claims overlap
+        Transaction funding = new Transaction();
+        int[] owner = new int[n / 2];
+        for (int i = 0; i < owner.length; i++) {
+            owner[i] = random.nextInt(keys.length);
+            funding.addOutput(Transaction.COIN, keys[owner[i]].getPublic());
+        }
+        funding.finalize();
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < owner.length; i++)
+            pool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+
+        ArrayList<Transaction> txs = new ArrayList<>();
+        ArrayList<Integer> txOwner = new ArrayList<>();
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        for (int j = 0; j < n; j++) {
+            Transaction tx = new Transaction();
+            ArrayList<Integer> signers = new ArrayList<>();
+            long in = 0;
+            if (j < 10 || random.nextInt(5) > 0) {
+                int spends = 1 + random.nextInt(2);
+                for (int s = 0; s < spends; s++) {
+                    int i = random.nextInt(owner.length);
+                    tx.addInput(funding.getHash(), i);
+                    signers.add(owner[i]);
+                    in += Transaction.COIN;
+                }
+            } else {
+                // Spend the single output of an earlier transaction
+                int parent = random.nextInt(txs.size());
+                tx.addInput(txs.get(parent).getHash(), 0);
+                signers.add(txOwner.get(parent));
+                in += txs.get(parent).getOutput(0).value;
+            }
+            int to = random.nextInt(keys.length);
+            tx.addOutput(in - random.nextInt(1000), keys[to].getPublic());
+            for (int s = 0; s < signers.size(); s++) {
+                signer.initSign(keys[signers.get(s)].getPrivate());
+                signer.update(tx.getRawDataToSign(s));
+                tx.addSignature(signer.sign(), s);
+            }
+            tx.finalize();
+            txs.add(tx);
+            txOwner.add(to);
+        }
+        Collections.shuffle(txs, random);
+        Transaction[] batch = txs.toArray(new Transaction[0]);
+
+        SignatureCache cache = new SignatureCache(2 * n);
+        new MaxFeeTxHandler(pool, cache).handleTxs(batch);
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            Transaction[] first = new TxHandler(pool, null, cache).handleTxs(batch);
+            report("TxHandler", first, batch, pool, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            Transaction[] maxFee = new MaxFeeTxHandler(pool, cache).handleTxs(batch);
+            report("MaxFeeTxHandler", maxFee, batch, pool, System.nanoTime() - start);
+        }
+    }
+
+    private static void report(String name, Transaction[] accepted, Transaction[] batch, UTXOPool pool,
+            long nanos) {
+        HashMap<UTXO, Long> values = new HashMap<>();
+        for (UTXO utxo : pool.getAllUTXO())
+            values.put(utxo, pool.getTxOutput(utxo).value);
+        for (Transaction tx : batch)
+            for (int o = 0; o < tx.numOutputs(); o++)
+                values.put(new UTXO(tx.getHash(), o), tx.getOutput(o).value);
+
+        long fees = 0;
+        for (Transaction tx : accepted) {
+            for (Transaction.Input input : tx.getInputs())
+                fees += values.get(new UTXO(input.prevTxHash, input.outputIndex));
+            for (Transaction.Output output : tx.getOutputs())
+                fees -= output.value;
+        }
+        System.out.printf("%-16s %6d accepted %12d fees %8.1f ms%n", name, accepted.length, fees,
+                nanos / 1e6);
+    }
+}
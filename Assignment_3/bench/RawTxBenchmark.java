@@ -0,0 +1,101 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Measures heap bytes allocated per call of the raw transaction encodings, comparing the old boxed
+ * {@code ArrayList<Byte>} encoder with {@code RawEncoder} writing into a fresh array, a reused
+ * buffer and a digest. Run with {@code java -cp <classes> RawTxBenchmark}.
+ */
+public class RawTxBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int CALLS = 20000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sink;
+
+    private interface Call {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+
+        // Transaction with two inputs and three outputs
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addInput(new byte[32], 1);
+        for (int i = 0; i < 3; i++)
+            tx.addOutput(i + 1, keyGen.genKeyPair().getPublic());
+        tx.addSignature(new byte[256], 0);
+        tx.addSignature(new byte[256], 1);
+        tx.finalize();
+
+        // The new encoder has to produce exactly the old bytes
+        if (!Arrays.equals(boxedRawTx(tx), tx.getRawTx()))
+            throw new IllegalStateException("getRawTx bytes changed");
+
+        ByteBuffer reused = ByteBuffer.allocate(tx.getRawTxSize());
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+        report("boxed getRawTx", () -> sink += boxedRawTx(tx).length);
+        report("getRawTx", () -> sink += tx.getRawTx().length);
+        report("getRawDataToSign", () -> sink += tx.getRawDataToSign(0).length);
+        report("encodeRawTx (reused buffer)", () -> {
+            reused.clear();
+            tx.encodeRawTx(new RawEncoder(reused));
+            sink += reused.position();
+        });
+        report("encodeRawTx (digest)", () -> {
+            tx.encodeRawTx(new RawEncoder(md));
+            sink += md.digest()[0];
+        });
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void report(String name, Call call) throws Exception {
+        for (int i = 0; i < WARMUP; i++)
+            call.run();
+        long thread = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++)
+            call.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - before;
+        System.out.printf("%-30s %10d B/call %10d ns/call%n", name, allocated / CALLS, elapsed / CALLS);
+    }
+
+    /** The previous {@code getRawTx} implementation, kept as the baseline */
+    private static byte[] boxedRawTx(Transaction t) {
+        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        for (Transaction.Input in : t.getInputs()) {
+            for (byte b : in.prevTxHash)
+                rawTx.add(b);
+            for (byte b : ByteBuffer.allocate(Integer.SIZE / 8).putInt(in.outputIndex).array())
+                rawTx.add(b);
+            for (byte b : in.getSignature())
+                rawTx.add(b);
+        }
+        for (Transaction.Output op : t.getOutputs()) {
+            for (byte b : ByteBuffer.allocate(Long.SIZE / 8).putLong(op.value).array())
+                rawTx.add(b);
+            for (byte b : ((RSAPublicKey) op.address).getPublicExponent().toByteArray())
+                rawTx.add(b);
+            for (byte b : ((RSAPublicKey) op.address).getModulus().toByteArray())
+                rawTx.add(b);
+        }
+        byte[] tx = new byte[rawTx.size()];
+        int i = 0;
+        for (Byte b : rawTx)
+            tx[i++] = b;
+        return tx;
+    }
+}
@@ -0,0 +1,74 @@
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Builds a UTXO set of {@code n} coins (10M by default) in a {@code HashMap<UTXO, Output>} and in
+ * an {@code OffHeapUTXOTable}, reporting heap and off-heap bytes, insert and lookup times. The
+ * default size needs about {@code -Xmx4g -XX:MaxDirectMemorySize=2g}. Run with
+ * {@code java -cp <classes> UTXOTableBenchmark [n]}.
+ */
+public class UTXOTableBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        PublicKey[] keys = new PublicKey[16];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = keyGen.genKeyPair().getPublic();
+
+        // Two outputs per transaction hash, as the hashes dominate the key size
+        byte[][] hashes = new byte[(n + 1) / 2][32];
+        Random random = new Random(42);
+        for (byte[] hash : hashes)
+            random.nextBytes(hash);
+        Transaction holder = new Transaction();
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        HashMap<UTXO, Transaction.Output> map = new HashMap<UTXO, Transaction.Output>();
+        for (int i = 0; i < n; i++)
+            map.put(new UTXO(hashes[i / 2], i % 2), holder.new Output(i, keys[i % keys.length]));
+        long mapInsert = System.nanoTime() - start;
+        long mapHeap = usedHeap() - heapBefore;
+
+        start = System.nanoTime();
+        long found = 0;
+        for (int i = 0; i < n; i++)
+            if (map.get(new UTXO(hashes[i / 2], i % 2)) != null)
+                found++;
+        long mapLookup = System.nanoTime() - start;
+        map = null;
+
+        heapBefore = usedHeap();
+        start = System.nanoTime();
+        OffHeapUTXOTable table = new OffHeapUTXOTable(n);
+        for (int i = 0; i < n; i++)
+            table.put(hashes[i / 2], i % 2, i, keys[i % keys.length]);
+        long tableInsert = System.nanoTime() - start;
+        long tableHeap = usedHeap() - heapBefore;
+
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++)
+            if (table.find(hashes[i / 2], i % 2) >= 0)
+                found++;
+        long tableLookup = System.nanoTime() - start;
+
+        System.out.printf("%d coins (%d found)%n", n, found);
+        System.out.printf("%-18s %12s %12s %12s %12s%n", "", "heap B/coin", "direct B", "insert ns", "lookup ns");
+        System.out.printf("%-18s %12d %12d %12d %12d%n", "HashMap", mapHeap / n, 0, mapInsert / n, mapLookup / n);
+        System.out.printf("%-18s %12d %12d %12d %12d%n", "OffHeapUTXOTable", tableHeap / n,
+                table.getReservedBytes(), tableInsert / n, tableLookup / n);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,68 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+
+/**
+ * Verifies per second with a {@code Signature} looked up on every call (the previous
+ * {@code Crypto.verifySignature}) against {@code Crypto.verify} reusing a per-thread instance, once
+ * with the same key on every call and once rotating through several keys. Run with
+ * {@code java -cp <classes> VerifyBenchmark [seconds]}.
+ */
+public class VerifyBenchmark {
+
+    private interface Verify {
+        boolean run(PublicKey key, byte[] message, byte[] signature) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 3;
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        KeyPair[] keys = new KeyPair[4];
+        byte[][] messages = new byte[keys.length][];
+        byte[][] signatures = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyGen.genKeyPair();
+            messages[i] = ("message " + i).getBytes();
+            Signature signer = Signature.getInstance("SHA256withRSA");
+            signer.initSign(keys[i].getPrivate());
+            signer.update(messages[i]);
+            signatures[i] = signer.sign();
+        }
+
+        Verify lookup = (key, message, signature) -> {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initVerify(key);
+            sig.update(message);
+            return sig.verify(signature);
+        };
+        Verify reused = (key, message, signature) ->
+                Crypto.verify(key, message, signature) == Crypto.Result.VALID;
+
+        for (int round = 0; round < 2; round++) {
+            for (int rotate : new int[] { 1, keys.length }) {
+                String keyset = rotate == 1 ? ", same key" : ", " + rotate + " keys";
+                report("getInstance per call" + keyset, lookup, rotate, keys, messages, signatures, seconds);
+                report("thread-local Signature" + keyset, reused, rotate, keys, messages, signatures, seconds);
+            }
+        }
+    }
+
+    private static void report(String name, Verify verify, int rotate, KeyPair[] keys,
+            byte[][] messages, byte[][] signatures, long seconds) throws Exception {
+        long end = System.nanoTime() + seconds * 1000000000L;
+        long count = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() < end) {
+            // With one key every call after the first takes the same-key shortcut; with several the
+            // key changes on every call and the verifier is initialized each time
+            int k = (int) (count % rotate);
+            if (!verify.run(keys[k].getPublic(), messages[k], signatures[k]))
+                throw new IllegalStateException("signature rejected");
+            count++;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-35s %10.0f verifies/s%n", name, count / elapsed);
+    }
+}
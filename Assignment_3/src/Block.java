@@ -1,23 +1,40 @@
-
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * A block of transactions after a coinbase, hashed over a header committing to their Merkle root.
+ * {@code getTransactions} returns a read-only list, so every transaction goes through
+ * {@code addTransaction} and the incrementally built tree always matches the transactions. It
+ * returns {@code List} instead of {@code ArrayList} for that reason.
+ *
+ * <p>
+ * As in Bitcoin, repeating the last transaction of an odd level leaves the Merkle root unchanged,
+ * so a block and a copy with duplicated transactions hash alike. {@link BlockChain} rejects any
+ * block containing a transaction hash twice, before validating its transactions.
+ */
 public class Block {
 
-    public static final double COINBASE = 25;
+    public static final long COINBASE = 25 * Transaction.COIN;
 
     public byte[] hash;
     public byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    /** Merkle tree over the coinbase hash followed by every transaction hash */
+    private MerkleTree merkleTree;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
         prevBlockHash = prevHash;
         coinbase = new Transaction(COINBASE, address);
         txs = new ArrayList<Transaction>();
+        merkleTree = new MerkleTree();
+        merkleTree.addLeaf(coinbase.getHash());
     }
 
     public Transaction getCoinbase() {
@@ -32,39 +49,75 @@ public class Block {
         return prevBlockHash;
     }
 
-    public ArrayList<Transaction> getTransactions() {
-        return txs;
+    /** @return the transactions after the coinbase, read-only */
+    public List<Transaction> getTransactions() {
+        return Collections.unmodifiableList(txs);
     }
 
     public Transaction getTransaction(int index) {
         return txs.get(index);
     }
 
+    /**
+     * adds the finalized {@code tx}, updating the Merkle root in O(log n)
+     *
+     * @throws IllegalStateException if {@code tx} is not finalized and so has no hash yet
+     */
     public void addTransaction(Transaction tx) {
+        checkFinalized(tx);
         txs.add(tx);
+        merkleTree.addLeaf(tx.getHash());
     }
 
-    public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
+    /** @return the Merkle root over the coinbase and transaction hashes */
+    public byte[] getMerkleRoot() {
+        return merkleTree.getRoot();
+    }
+
+    private static void checkFinalized(Transaction tx) {
+        if (!tx.isFinalized())
+            throw new IllegalStateException("transaction is not finalized");
+    }
+
+    /**
+     * @return the block header: the previous block hash (zeros for the genesis block) followed by
+     *         the Merkle root, 64 bytes for a block built on a SHA-256 hash
+     */
+    public byte[] getHeader() {
+        byte[] prev = prevBlockHash == null ? new byte[MerkleTree.HASH_SIZE] : prevBlockHash;
+        ByteBuffer header = ByteBuffer.allocate(prev.length + MerkleTree.HASH_SIZE);
+        header.put(prev);
+        header.put(getMerkleRoot());
+        return header.array();
+    }
+
+    /** @return the exact length in bytes of {@code getRawBlock()} */
+    public int getRawBlockSize() {
+        int size = prevBlockHash == null ? 0 : prevBlockHash.length;
+        for (int i = 0; i < txs.size(); i++)
+            size += txs.get(i).getRawTxSize();
+        return size;
+    }
+
+    /** writes the previous block hash followed by every raw transaction, one at a time */
+    public void encodeRawBlock(RawEncoder out) {
         if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
-        }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
+            out.putBytes(prevBlockHash);
+        for (int i = 0; i < txs.size(); i++)
+            txs.get(i).encodeRawTx(out);
+    }
+
+    public byte[] getRawBlock() {
+        byte[] raw = new byte[getRawBlockSize()];
+        encodeRawBlock(new RawEncoder(ByteBuffer.wrap(raw)));
         return raw;
     }
 
+    /** the block hash is SHA-256 over the fixed-size header, not over the whole block */
     public void finalize() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
+            md.update(getHeader());
             hash = md.digest();
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
@@ -4,13 +4,42 @@
 
 import java.util.ArrayList;
 import java.util.HashMap;
-
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Blocks down to {@code CUT_OFF_AGE} below the end of the main branch, the UTXO pool at that end
+ * and the pool of pending transactions. Blocks are added one at a time: {@code addBlock} and
+ * {@code tryAddBlock} are synchronized, while any number of threads may add transactions or read
+ * the end of the main branch at once.
+ */
 public class BlockChain {
     public static int CUT_OFF_AGE = 10;
 
-    private HashMap<byte[], BlockWrapper> chain;
-    private BlockWrapper main;
+    /** Pool verifying the input signatures of a block in parallel; null verifies serially */
+    public static ForkJoinPool VERIFY_POOL = ForkJoinPool.commonPool();
+
+    /** Maximum number of successful signature checks remembered across pool and blocks */
+    public static int SIGNATURE_CACHE_SIZE = 100000;
+
+    /** Blocks by hash, down to {@code CUT_OFF_AGE} below the end of the main branch */
+    private HashMap<ByteArrayWrapper, BlockWrapper> chain;
+    /** The same blocks by height, so those too deep to be a parent again can be dropped */
+    private TreeMap<Integer, ArrayList<BlockWrapper>> byHeight;
+    /** End of the main branch; only changed while adding a block, read by any thread */
+    private volatile BlockWrapper main;
+    /**
+     * The only materialized UTXO pool, the one at the end of the main branch. It is replaced, never
+     * changed, so threads adding transactions can read it while a block is added.
+     */
+    private volatile UTXOPool mainPool;
     private TransactionPool transactionPool;
+    private SignatureCache signatureCache;
+    private RejectionCounters rejections;
+
+    private MempoolAdmission admission;
 
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
@@ -19,22 +48,28 @@ public class BlockChain {
     public BlockChain(Block genesisBlock) {
 
         UTXOPool pool = new UTXOPool();
+        UTXODelta delta = new UTXODelta();
         chain = new HashMap<>();
+        byHeight = new TreeMap<>();
 
         // Include coinbase in UTXO pool
         Transaction coinbase = genesisBlock.getCoinbase();
         for (int output = 0; output < coinbase.numOutputs(); output++) {
             Transaction.Output transactionOutput = coinbase.getOutput(output);
-            pool.addUTXO( new UTXO(coinbase.getHash(), output), transactionOutput);
+            delta.addUTXO(pool, new UTXO(coinbase.getHash(), output), transactionOutput);
         }
 
         // Wrap genesis block, then add to chain
-        BlockWrapper genesisBlockWrapped = new BlockWrapper(genesisBlock, null, pool);
-        chain.put(genesisBlock.getHash(), genesisBlockWrapped);
+        BlockWrapper genesisBlockWrapped = new BlockWrapper(genesisBlock, null, delta);
+        put(genesisBlockWrapped);
 
         // Genesis block is end of main chain; empty transaction pool
         main = genesisBlockWrapped;
+        mainPool = pool;
         transactionPool = new TransactionPool();
+        signatureCache = new SignatureCache(SIGNATURE_CACHE_SIZE);
+        rejections = new RejectionCounters();
+        admission = new MempoolAdmission(transactionPool, VERIFY_POOL, signatureCache, rejections);
 
     }
 
@@ -45,7 +80,7 @@ public class BlockChain {
 
     /** Get the UTXOPool for mining a new block on top of max height block */
     public UTXOPool getMaxHeightUTXOPool() {
-        return main.getPool();
+        return new UTXOPool(mainPool);
     }
 
     /** Get the transaction pool to mine a new block */
@@ -53,6 +88,16 @@ public class BlockChain {
         return transactionPool;
     }
 
+    /** Get the cache of successful signature checks shared by every transaction handler */
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /** Get the rejections of blocks and of the transactions in them, by reason */
+    public RejectionCounters getRejectionCounters() {
+        return rejections;
+    }
+
     /**
      * Add {@code block} to the block chain if it is valid. For validity, all transactions should be
      * valid and block should be at {@code height > (maxHeight - CUT_OFF_AGE)}.
@@ -66,86 +111,249 @@ public class BlockChain {
      * @return true if block is successfully added
      */
     public boolean addBlock(Block block) {
+        return tryAddBlock(block) == ValidationResult.VALID;
+    }
 
-        // Return false if genesis block
-        if (block.getPrevBlockHash() == null) {
-            System.out.println("Is genesis block");
-            return false;
-        }
+    /**
+     * Add {@code block} like {@link #addBlock} and count a rejection. Blocks added from several
+     * threads are added one after the other.
+     *
+     * @return {@code VALID} if block is successfully added, or else the reason it was rejected
+     */
+    public synchronized ValidationResult tryAddBlock(Block block) {
+        return rejections.record(add(block));
+    }
 
-        // Return false if no previous block found
-        BlockWrapper previousBlockWrapped = chain.get(block.getPrevBlockHash());
-        if (previousBlockWrapped == null) {
-            System.out.println("No previous block");
-            return false;
-        }
+    private ValidationResult add(Block block) {
 
-        // Check if all contained transactions are valid
-        TxHandler handler = new TxHandler(previousBlockWrapped.getPool());
-        Transaction[] transactions = block.getTransactions().toArray(new Transaction[block.getTransactions().size()]);
-        Transaction[] validTransactions = handler.handleTxs(transactions);
+        // Reject unfinalized and genesis blocks
+        if (block.getHash() == null)
+            return ValidationResult.MALFORMED;
+        if (block.getPrevBlockHash() == null)
+            return ValidationResult.GENESIS_BLOCK;
 
-        // Return false if any transaction is invalid
-        if (validTransactions.length != transactions.length) {
-            System.out.println("Invalid transaction");
-            return false;
-        }
+        // Reject if no previous block found, including those dropped for being too deep
+        BlockWrapper previousBlockWrapped = chain.get(new ByteArrayWrapper(block.getPrevBlockHash()));
+        if (previousBlockWrapped == null)
+            return ValidationResult.UNKNOWN_PARENT;
 
         // Check height; extend from longest
-        if (!(previousBlockWrapped.getHeight() + 1 > main.getHeight() - CUT_OFF_AGE)) {
-            System.out.println("Height");
-            return false;
-        }
+        if (!(previousBlockWrapped.getHeight() + 1 > main.getHeight() - CUT_OFF_AGE))
+            return ValidationResult.BAD_HEIGHT;
 
-        UTXOPool pool = handler.getUTXOPool();
+        // Reject a transaction hash repeated, which a duplicated last transaction would hide in the
+        // Merkle root
+        HashSet<ByteArrayWrapper> hashes = new HashSet<>();
+        hashes.add(new ByteArrayWrapper(block.getCoinbase().getHash()));
+        for (Transaction tx : block.getTransactions())
+            if (!hashes.add(new ByteArrayWrapper(tx.getHash())))
+                return ValidationResult.INVALID_TRANSACTION;
 
-        // Include coinbase in UTXO pool
-        Transaction coinbase = block.getCoinbase();
-        for (int output = 0; output < coinbase.numOutputs(); output++) {
-            Transaction.Output transactionOutput = coinbase.getOutput(output);
-            pool.addUTXO( new UTXO(coinbase.getHash(), output), transactionOutput);
-        }
+        // Check if all contained transactions are valid
+        UTXOPool previousPool = getPool(previousBlockWrapped);
+        if (previousPool == null)
+            return ValidationResult.BAD_HEIGHT;
+        TxHandler handler = new TxHandler(previousPool, VERIFY_POOL, signatureCache, rejections);
+        Transaction[] transactions = block.getTransactions().toArray(new Transaction[block.getTransactions().size()]);
+        Transaction[] validTransactions = handler.handleTxs(transactions);
+
+        // Reject if any transaction is invalid
+        if (validTransactions.length != transactions.length)
+            return ValidationResult.INVALID_TRANSACTION;
+
+        // Record changes to the parent's UTXO pool while applying them
+        UTXOPool pool = new UTXOPool(previousPool);
+        UTXODelta delta = new UTXODelta();
 
-        // Update transactions
-        for (int i = 0; i < transactions.length; i++) {
+        // Update transactions in the order they were validated, parents before children
+        for (int i = 0; i < validTransactions.length; i++) {
 
-            Transaction tx = transactions[i];
-            ArrayList<Transaction.Input> inputs = tx.getInputs();
+            Transaction tx = validTransactions[i];
+            List<Transaction.Input> inputs = tx.getInputs();
 
             // Check which UTXOs have been spent, remove from UTXO pool
             for (int j = 0; j < tx.numInputs(); j++) {
                 Transaction.Input input = inputs.get(j);
-                pool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
+                delta.removeUTXO(pool, new UTXO(input.prevTxHash, input.outputIndex));
             }
 
             // Add new outputs to UTXO pool
             for (int k = 0; k < tx.numOutputs(); k++) {
-                pool.addUTXO(new UTXO(tx.getHash(), k), tx.getOutput(k));
+                delta.addUTXO(pool, new UTXO(tx.getHash(), k), tx.getOutput(k));
             }
 
-            // Check which Transactions have been processed, remove from transaction pool
-            for (int m = 0; m < block.getTransactions().size(); m++) {
-                transactionPool.removeTransaction(tx.getHash());
-            }
+        }
 
+        // Include coinbase in UTXO pool
+        Transaction coinbase = block.getCoinbase();
+        for (int output = 0; output < coinbase.numOutputs(); output++) {
+            Transaction.Output transactionOutput = coinbase.getOutput(output);
+            delta.addUTXO(pool, new UTXO(coinbase.getHash(), output), transactionOutput);
         }
 
         // Create new block wrapper and add to chain
-        BlockWrapper newBlockWrapped =  new BlockWrapper(block, previousBlockWrapped, pool);
-        chain.put(block.getHash(), newBlockWrapped);
-
-        // Update end of branch and return success
-        if(newBlockWrapped.getHeight() > main.getHeight()) {
+        BlockWrapper newBlockWrapped =  new BlockWrapper(block, previousBlockWrapped, delta);
+        put(newBlockWrapped);
+
+        // Update end of branch; the transaction pool only follows the main branch
+        if (previousBlockWrapped == main) {
+            // Remove processed transactions and those conflicting with them from transaction pool,
+            // after the new tip is set, so admissions reading the raised tip generation see it
+            mainPool = pool;
+            transactionPool.removeConfirmed(validTransactions);
             main = newBlockWrapped;
+            prune();
+        } else if (newBlockWrapped.getHeight() > main.getHeight()) {
+            reorganize(newBlockWrapped, pool);
+            prune();
+        }
+
+        return ValidationResult.VALID;
+
+    }
+
+    /**
+     * Make {@code newMain}, whose UTXO pool is {@code pool}, the end of the main branch and update the
+     * transaction pool in one batch. The transactions of the blocks leaving the main branch, and the
+     * pooled transactions spending from them, are validated again against the new end of the main
+     * branch, which drops those confirmed or conflicting on the new branch and those spending
+     * outputs that are gone. The rest of the transaction pool is not looked at.
+     */
+    private void reorganize(BlockWrapper newMain, UTXOPool pool) {
+        ArrayList<BlockWrapper> disconnected = new ArrayList<>();
+        ArrayList<BlockWrapper> connected = new ArrayList<>();
+        BlockWrapper back = main;
+        BlockWrapper forward = newMain;
+        while (back.getHeight() > forward.getHeight()) {
+            disconnected.add(back);
+            back = back.getPreviousBlock();
+        }
+        while (forward.getHeight() > back.getHeight()) {
+            connected.add(forward);
+            forward = forward.getPreviousBlock();
+        }
+        while (back != forward) {
+            disconnected.add(back);
+            back = back.getPreviousBlock();
+            connected.add(forward);
+            forward = forward.getPreviousBlock();
         }
 
-        return true;
+        // Oldest blocks first, so parents come before children
+        ArrayList<Transaction> left = new ArrayList<>();
+        for (int i = disconnected.size() - 1; i >= 0; i--) {
+            left.add(disconnected.get(i).getRawBlock().getCoinbase());
+            left.addAll(disconnected.get(i).getRawBlock().getTransactions());
+        }
+        ArrayList<Transaction> confirmed = new ArrayList<>();
+        HashSet<ByteArrayWrapper> confirmedHashes = new HashSet<>();
+        for (int i = connected.size() - 1; i >= 0; i--)
+            for (Transaction tx : connected.get(i).getRawBlock().getTransactions()) {
+                confirmed.add(tx);
+                confirmedHashes.add(new ByteArrayWrapper(tx.getHash()));
+            }
 
+        ArrayList<Transaction> returning = new ArrayList<>(left);
+        mainPool = pool;
+        returning.addAll(transactionPool.removeSpending(left.toArray(new Transaction[left.size()])));
+        transactionPool.removeConfirmed(confirmed.toArray(new Transaction[confirmed.size()]));
+        main = newMain;
+
+        // Coinbases and transactions now confirmed are gone for good
+        returning.removeIf(tx -> tx.isCoinbase() || confirmedHashes.contains(new ByteArrayWrapper(tx.getHash())));
+        admission.admit(pool, returning.toArray(new Transaction[returning.size()]));
+    }
+
+    private void put(BlockWrapper block) {
+        chain.put(new ByteArrayWrapper(block.getRawBlock().getHash()), block);
+        byHeight.computeIfAbsent(block.getHeight(), height -> new ArrayList<>()).add(block);
+    }
+
+    /**
+     * Drop the blocks too deep below the end of the main branch to be a parent again, and detach
+     * the oldest blocks kept, so memory holds only the deltas of recent blocks
+     */
+    private void prune() {
+        int oldest = main.getHeight() - CUT_OFF_AGE;
+        while (!byHeight.isEmpty() && byHeight.firstKey() < oldest)
+            for (BlockWrapper block : byHeight.pollFirstEntry().getValue())
+                chain.remove(new ByteArrayWrapper(block.getRawBlock().getHash()));
+        ArrayList<BlockWrapper> kept = byHeight.get(oldest);
+        if (kept != null)
+            for (BlockWrapper block : kept)
+                block.detach();
+    }
+
+    /**
+     * Get the UTXO pool at the end of {@code block}. Starting from the main pool, the deltas of the
+     * main branch are rolled back to the common ancestor and those of {@code block}'s branch are
+     * replayed, so the cost is proportional to the changes in between, not to the pool size.
+     *
+     * @return the pool, or null if the branches join below the oldest blocks kept
+     */
+    private UTXOPool getPool(BlockWrapper block) {
+        UTXOPool pool = new UTXOPool(mainPool);
+        BlockWrapper back = main;
+        BlockWrapper forward = block;
+        ArrayList<BlockWrapper> replay = new ArrayList<>();
+
+        while (back.getHeight() > forward.getHeight()) {
+            back.getDelta().undo(pool);
+            back = back.getPreviousBlock();
+        }
+        while (forward.getHeight() > back.getHeight()) {
+            replay.add(forward);
+            forward = forward.getPreviousBlock();
+        }
+        while (back != forward) {
+            if (back.getPreviousBlock() == null)
+                return null;
+            back.getDelta().undo(pool);
+            back = back.getPreviousBlock();
+            replay.add(forward);
+            forward = forward.getPreviousBlock();
+        }
+
+        for (int i = replay.size() - 1; i >= 0; i--)
+            replay.get(i).getDelta().apply(pool);
+        return pool;
     }
 
     /** Add a transaction to the transaction pool */
     public void addTransaction(Transaction tx) {
-        transactionPool.addTransaction(tx);
+        addTransactions(new Transaction[] { tx });
+    }
+
+    /**
+     * Add the valid transactions of {@code txs} to the transaction pool, validating them against the
+     * end of the main branch and the pooled transactions. Any number of threads may add transactions
+     * at once, also while one thread adds blocks; those still being validated when a block changes
+     * the end of the main branch are validated again against the new end.
+     *
+     * @return for each transaction {@code VALID} if it is pooled, or else the reason it was rejected
+     */
+    public ValidationResult[] addTransactions(Transaction[] txs) {
+        ValidationResult[] results = new ValidationResult[txs.length];
+        int[] pending = new int[txs.length];
+        for (int i = 0; i < txs.length; i++)
+            pending[i] = i;
+        int n = txs.length;
+        while (n > 0) {
+            // The generation is read first, so mainPool is at least as new as it
+            long generation = transactionPool.getTipGeneration();
+            Transaction[] batch = new Transaction[n];
+            for (int i = 0; i < n; i++)
+                batch[i] = txs[pending[i]];
+            ValidationResult[] batchResults = admission.admit(mainPool, generation, batch);
+            int stale = 0;
+            for (int i = 0; i < n; i++) {
+                results[pending[i]] = batchResults[i];
+                if (batchResults[i] == ValidationResult.STALE_TIP)
+                    pending[stale++] = pending[i];
+            }
+            n = stale;
+        }
+        return results;
     }
 
 }
\ No newline at end of file
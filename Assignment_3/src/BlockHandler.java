@@ -2,6 +2,10 @@
 import java.security.PublicKey;
 
 public class BlockHandler {
+
+    /** Most pooled transactions considered for a new block, taken as packages by ancestor fee rate */
+    public static int MAX_BLOCK_TRANSACTIONS = 10000;
+
     private BlockChain blockChain;
 
     /** assume blockChain has the genesis block */
@@ -10,7 +14,8 @@ public class BlockHandler {
     }
 
     /**
-     * add {@code block} to the block chain if it is valid.
+     * add {@code block} to the block chain if it is valid. May be called from many threads; blocks
+     * are added one at a time.
      * 
      * @return true if the block is valid and has been added, false otherwise
      */
@@ -27,8 +32,9 @@ public class BlockHandler {
         Block current = new Block(parentHash, myAddress);
         UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
         TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(uPool, BlockChain.VERIFY_POOL,
+                blockChain.getSignatureCache());
+        Transaction[] txs = txPool.getBlockTemplate(MAX_BLOCK_TRANSACTIONS).toArray(new Transaction[0]);
         Transaction[] rTxs = handler.handleTxs(txs);
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
@@ -40,7 +46,7 @@ public class BlockHandler {
             return null;
     }
 
-    /** process a {@code Transaction} */
+    /** process a {@code Transaction}; may be called from many threads at once */
     public void processTx(Transaction tx) {
         blockChain.addTransaction(tx);
     }
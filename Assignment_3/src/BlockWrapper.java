@@ -3,12 +3,12 @@ public class BlockWrapper {
     private Block block;
     private BlockWrapper previousBlock;
     private int height;
-    private UTXOPool pool;
+    private UTXODelta delta;
 
 
-    public BlockWrapper(Block block, BlockWrapper previousBlock, UTXOPool pool) {
+    public BlockWrapper(Block block, BlockWrapper previousBlock, UTXODelta delta) {
         this.block = block;
-        this.pool = pool;
+        this.delta = delta;
 
         // Check if first block on chain
         if (previousBlock != null) {
@@ -24,13 +24,26 @@ public class BlockWrapper {
         return this.block;
     }
 
-    public UTXOPool getPool() {
-        // Return UTXO pool corresponding to block
-        return new UTXOPool(this.pool);
+    public BlockWrapper getPreviousBlock() {
+        return this.previousBlock;
+    }
+
+    public UTXODelta getDelta() {
+        // Return changes this block made to the UTXO pool of its parent
+        return this.delta;
     }
 
     public int getHeight() {
         return this.height;
     }
 
+    /**
+     * Drops the previous block and the delta, once this block is the oldest kept. No branch may
+     * then leave the main branch below it, so neither is needed again.
+     */
+    public void detach() {
+        this.previousBlock = null;
+        this.delta = null;
+    }
+
 }
@@ -1,3 +1,4 @@
+import java.lang.ref.WeakReference;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -6,6 +7,48 @@ import java.security.SignatureException;
 
 public class Crypto {
 
+    /** Outcome of a signature verification */
+    public enum Result {
+        /** the signature is valid for the message under the key */
+        VALID,
+        /** the signature is well-formed but does not match the message and key */
+        INVALID_SIGNATURE,
+        /** the signature is missing or cannot be parsed for the key */
+        MALFORMED_SIGNATURE,
+        /** the key is missing or not an RSA public key */
+        INVALID_KEY
+    }
+
+    /** A per-thread {@code Signature} together with the key it is currently initialized with */
+    private static class Verifier {
+        private Signature sig;
+        private PublicKey key;
+
+        private Verifier() {
+            try {
+                sig = Signature.getInstance("SHA256withRSA");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Held weakly, so the last key a thread verified with (which its {@code Signature} keeps) is not
+     * pinned for the lifetime of the thread; a collected verifier is created again on the next call.
+     */
+    private static final ThreadLocal<WeakReference<Verifier>> VERIFIERS = new ThreadLocal<>();
+
+    private static Verifier verifier() {
+        WeakReference<Verifier> ref = VERIFIERS.get();
+        Verifier verifier = ref == null ? null : ref.get();
+        if (verifier == null) {
+            verifier = new Verifier();
+            VERIFIERS.set(new WeakReference<>(verifier));
+        }
+        return verifier;
+    }
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,24 +56,39 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
+        return verify(pubKey, message, signature) == Result.VALID;
+    }
+
+    /**
+     * Verifies {@code signature} of {@code message} under {@code pubKey} with a {@code Signature}
+     * reused by the calling thread. The verifier is only re-initialized when the key object changes,
+     * so callers checking several inputs paying to the same decoded key skip the key setup.
+     *
+     * @return the typed outcome; failures are never printed
+     */
+    public static Result verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (pubKey == null)
+            return Result.INVALID_KEY;
+        if (signature == null)
+            return Result.MALFORMED_SIGNATURE;
+
+        Verifier verifier = verifier();
         try {
-            sig.initVerify(pubKey);
+            if (verifier.key != pubKey) {
+                verifier.key = null;
+                verifier.sig.initVerify(pubKey);
+                verifier.key = pubKey;
+            }
         } catch (InvalidKeyException e) {
-            e.printStackTrace();
+            return Result.INVALID_KEY;
         }
         try {
-            sig.update(message);
-            return sig.verify(signature);
+            verifier.sig.update(message);
+            return verifier.sig.verify(signature) ? Result.VALID : Result.INVALID_SIGNATURE;
         } catch (SignatureException e) {
-            e.printStackTrace();
+            // The state after a failed verify is unspecified; initialize again next time
+            verifier.key = null;
+            return Result.MALFORMED_SIGNATURE;
         }
-        return false;
-
     }
 }
@@ -0,0 +1,88 @@
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/**
+ * Canonical raw encoding of an RSA public key as it appears in transactions: the public exponent
+ * followed by the modulus, each as {@code BigInteger.toByteArray()}. Encodings are interned, so
+ * every output paying to an equal key shares one instance, and the encoding and hash code are
+ * computed once per key instead of on every serialization or comparison. The registry is split into
+ * stripes, so outputs created on different threads rarely wait for the same lock.
+ */
+public final class EncodedKey {
+
+    private static final int STRIPES = 16;
+
+    /** Keys are held weakly; an encoding does not refer back to its key */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final WeakHashMap<PublicKey, EncodedKey>[] REGISTRY = new WeakHashMap[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++)
+            REGISTRY[i] = new WeakHashMap<PublicKey, EncodedKey>();
+    }
+
+    private final byte[] encoding;
+    private final int exponentLength;
+    private final int hash;
+
+    private EncodedKey(RSAPublicKey key) {
+        byte[] exponent = key.getPublicExponent().toByteArray();
+        byte[] modulus = key.getModulus().toByteArray();
+        encoding = Arrays.copyOf(exponent, exponent.length + modulus.length);
+        System.arraycopy(modulus, 0, encoding, exponent.length, modulus.length);
+        exponentLength = exponent.length;
+        hash = Arrays.hashCode(encoding) * 31 + exponentLength;
+    }
+
+    /** @return the shared encoding of {@code key}, which must be an RSA public key */
+    public static EncodedKey intern(PublicKey key) {
+        WeakHashMap<PublicKey, EncodedKey> stripe = REGISTRY[(key.hashCode() & 0x7fffffff) % STRIPES];
+        EncodedKey encoded;
+        synchronized (stripe) {
+            encoded = stripe.get(key);
+        }
+        if (encoded == null) {
+            // Encode outside the lock; a racing thread may win, and its instance is kept
+            EncodedKey created = new EncodedKey((RSAPublicKey) key);
+            synchronized (stripe) {
+                encoded = stripe.putIfAbsent(key, created);
+            }
+            if (encoded == null)
+                encoded = created;
+        }
+        return encoded;
+    }
+
+    /** @return the exponent and modulus bytes; shared, so callers must not modify them */
+    public byte[] getEncoding() {
+        return encoding;
+    }
+
+    public int size() {
+        return encoding.length;
+    }
+
+    /** @return the number of leading bytes of {@code getEncoding()} holding the exponent */
+    public int getExponentLength() {
+        return exponentLength;
+    }
+
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+
+        EncodedKey key = (EncodedKey) other;
+        return hash == key.hash && exponentLength == key.exponentLength
+                && Arrays.equals(encoding, key.encoding);
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,392 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Transaction handler that picks, among the valid transactions of a batch, a mutually valid set with
+ * the highest total fee, instead of keeping whichever of two conflicting transactions comes first.
+ *
+ * <p>
+ * Transactions conflict when they claim the same output, and a transaction spending an output of
+ * another one in the batch needs that parent. The batch is split into connected components of
+ * those relations. A greedy pass takes packages of a transaction and its missing ancestors in order
+ * of fee. Every component of at most {@code EXACT_COMPONENT_SIZE} transactions is then solved
+ * exactly by branch and bound, starting from the greedy choice, until {@code TIME_BUDGET_NANOS}
+ * runs out.
+ *
+ * <p>
+ * The search only keeps a choice that pays strictly more, so members paying no fee are added back
+ * afterwards wherever they still fit. A transaction whose package cannot be taken because it or an
+ * ancestor claims an output already taken is never walked again, nor is anything spending from it,
+ * so the greedy pass stays linear on long chains. Only packages failing on two ancestors that claim
+ * the same output are walked again for each of their descendants.
+ */
+public class MaxFeeTxHandler {
+
+    /** Largest component solved exactly; must not exceed 64, the bits of a mask */
+    public static int EXACT_COMPONENT_SIZE = 48;
+
+    /** Time spent on exact search per batch, after which the greedy choice is kept */
+    public static long TIME_BUDGET_NANOS = 50000000L;
+
+    /** Search nodes between two checks of the clock */
+    private static final int CLOCK_INTERVAL = 1024;
+
+    private UTXOView pool;
+
+    /** Pool used to verify all input signatures of a batch in parallel, or null to verify serially */
+    private ForkJoinPool verifyPool;
+
+    /** Cache of successful signature checks shared with other handlers, or null */
+    private SignatureCache signatureCache;
+
+    /** Rejections of transactions that are not valid on their own, by reason */
+    private RejectionCounters rejections = new RejectionCounters();
+
+    public MaxFeeTxHandler(UTXOPool utxoPool) {
+        this(utxoPool, null);
+    }
+
+    /** Creates a handler that consults and fills {@code signatureCache} when checking signatures */
+    public MaxFeeTxHandler(UTXOPool utxoPool, SignatureCache signatureCache) {
+        this(utxoPool, null, signatureCache);
+    }
+
+    /**
+     * Creates a handler like {@link #MaxFeeTxHandler(UTXOPool, SignatureCache)} that verifies the
+     * input signatures of each batch in parallel on {@code verifyPool}, or serially if it is null
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, ForkJoinPool verifyPool, SignatureCache signatureCache) {
+        this.pool = new UTXOView(utxoPool);
+        this.verifyPool = verifyPool;
+        this.signatureCache = signatureCache;
+    }
+
+    /** Branch-and-bound state for one component, whose members are in spend order */
+    private static class Search {
+        private final long[] fee;
+        private final long[] parents;
+        private final long[] conflicts;
+        /** sum of the fees of members i and later */
+        private final long[] remaining;
+        private final long deadline;
+        private long best;
+        private long bestMask;
+        private int nodes;
+        private boolean timedOut;
+
+        private Search(long[] fee, long[] parents, long[] conflicts, long deadline) {
+            this.fee = fee;
+            this.parents = parents;
+            this.conflicts = conflicts;
+            this.deadline = deadline;
+            remaining = new long[fee.length + 1];
+            for (int i = fee.length - 1; i >= 0; i--)
+                remaining[i] = remaining[i + 1] + fee[i];
+        }
+
+        private void run(int i, long chosen, long total) {
+            if (total > best) {
+                best = total;
+                bestMask = chosen;
+            }
+            if (i == fee.length || total + remaining[i] <= best || timedOut)
+                return;
+            if (++nodes % CLOCK_INTERVAL == 0 && System.nanoTime() > deadline) {
+                timedOut = true;
+                return;
+            }
+            long bit = 1L << i;
+            if ((chosen & parents[i]) == parents[i] && (chosen & conflicts[i]) == 0)
+                run(i + 1, chosen | bit, total + fee[i]);
+            run(i + 1, chosen, total);
+        }
+    }
+
+    /**
+     * Handles each epoch like {@link TxHandler#handleTxs}, but resolves conflicts between valid
+     * transactions so that the total fee of the accepted ones is as high as found within the time
+     * budget. Accepted transactions are returned with parents before children.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        int n = possibleTxs.length;
+        HashMap<ByteArrayWrapper, Integer> batch = new HashMap<>();
+        for (int x = 0; x < n; x++)
+            if (possibleTxs[x].getHash() != null)
+                batch.putIfAbsent(new ByteArrayWrapper(possibleTxs[x].getHash()), x);
+        int[] order = TxHandler.spendOrder(possibleTxs, batch);
+
+        // Validate each transaction on its own, against the pool and its valid parents
+        long[] fee = new long[n];
+        int[][] parents = new int[n][];
+        UTXO[][] claims = new UTXO[n][];
+        TxHandler.SignatureCheck[][] checks = new TxHandler.SignatureCheck[n][];
+        ArrayList<TxHandler.SignatureCheck> all = new ArrayList<>();
+        for (int x : order) {
+            // Without a hash a transaction cannot be spent from or added to the pool
+            if (possibleTxs[x].getHash() == null)
+                continue;
+            ValidationResult result = validate(possibleTxs, x, batch, fee, parents, claims, checks);
+            if (result == ValidationResult.VALID)
+                all.addAll(Arrays.asList(checks[x]));
+            else
+                rejections.record(result);
+        }
+
+        // Verify the signatures of the transactions valid so far at once, then drop those with a bad
+        // signature together with everything spending from them
+        TxHandler.verifyAll(verifyPool, signatureCache, all.toArray(new TxHandler.SignatureCheck[0]));
+        for (int x : order) {
+            if (claims[x] == null)
+                continue;
+            ValidationResult result = ValidationResult.VALID;
+            for (TxHandler.SignatureCheck check : checks[x])
+                if (!check.isValid())
+                    result = ValidationResult.BAD_SIGNATURE;
+            for (int parent : parents[x])
+                if (claims[parent] == null)
+                    result = ValidationResult.MISSING_INPUT;
+            if (result != ValidationResult.VALID) {
+                claims[x] = null;
+                rejections.record(result);
+            }
+        }
+
+        // Claims of the same output and parent links join components
+        int[] component = new int[n];
+        for (int x = 0; x < n; x++)
+            component[x] = x;
+        HashMap<UTXO, Integer> claimedBy = new HashMap<>();
+        for (int x = 0; x < n; x++) {
+            if (claims[x] == null)
+                continue;
+            for (UTXO utxo : claims[x]) {
+                Integer other = claimedBy.putIfAbsent(utxo, x);
+                if (other != null)
+                    union(component, x, other);
+            }
+            for (int parent : parents[x])
+                union(component, x, parent);
+        }
+
+        boolean[] chosen = greedy(order, fee, parents, claims);
+        improve(order, component, fee, parents, claims, chosen);
+
+        ArrayList<Transaction> accepted = new ArrayList<>();
+        for (int x : order) {
+            if (!chosen[x])
+                continue;
+            Transaction tx = possibleTxs[x];
+            accepted.add(tx);
+            for (UTXO utxo : claims[x])
+                pool.removeUTXO(utxo);
+            for (int o = 0; o < tx.numOutputs(); o++)
+                pool.addUTXO(new UTXO(tx.getHash(), o), tx.getOutput(o));
+        }
+        return accepted.toArray(new Transaction[accepted.size()]);
+    }
+
+    /** @return a new pool holding the given pool with every accepted transaction applied */
+    public UTXOPool getUTXOPool() {
+        return pool.commit();
+    }
+
+    public RejectionCounters getRejectionCounters() {
+        return rejections;
+    }
+
+    /**
+     * Checks transaction {@code x} as {@link TxHandler#isValidTx} does, except that outputs of valid
+     * batch transactions count as available and that signatures are only collected, to be verified
+     * later. Fills in its fee, batch parents, claimed outputs and signature checks, or leaves its
+     * claims null if it is invalid.
+     *
+     * @return {@code VALID}, or the first reason other than a signature why it is not valid
+     */
+    private ValidationResult validate(Transaction[] txs, int x, HashMap<ByteArrayWrapper, Integer> batch,
+            long[] fee, int[][] parents, UTXO[][] claims, TxHandler.SignatureCheck[][] checks) {
+        Transaction tx = txs[x];
+        UTXO[] txClaims = new UTXO[tx.numInputs()];
+        int[] txParents = new int[tx.numInputs()];
+        TxHandler.SignatureCheck[] txChecks = new TxHandler.SignatureCheck[tx.numInputs()];
+        int numParents = 0;
+        HashSet<UTXO> seen = new HashSet<>();
+        long inputSum = 0;
+        long outputSum = 0;
+
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            if (input.prevTxHash == null)
+                return ValidationResult.MISSING_INPUT;
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (!seen.add(utxo))
+                return ValidationResult.DOUBLE_SPEND;
+            Transaction.Output origin = pool.getTxOutput(utxo);
+            if (origin == null) {
+                Integer parent = batch.get(new ByteArrayWrapper(input.prevTxHash));
+                if (parent == null || claims[parent] == null || input.outputIndex < 0)
+                    return ValidationResult.MISSING_INPUT;
+                origin = txs[parent].getOutput(input.outputIndex);
+                if (origin == null)
+                    return ValidationResult.MISSING_INPUT;
+                txParents[numParents++] = parent;
+            }
+            txChecks[i] = new TxHandler.SignatureCheck(origin, tx.getRawDataToSign(i), input.getSignature());
+            if (inputSum > Long.MAX_VALUE - origin.value)
+                return ValidationResult.VALUE_OVERFLOW;
+            inputSum += origin.value;
+            txClaims[i] = utxo;
+        }
+        for (int o = 0; o < tx.numOutputs(); o++) {
+            long value = tx.getOutput(o).value;
+            if (value < 0)
+                return ValidationResult.NEGATIVE_OUTPUT;
+            if (outputSum > Long.MAX_VALUE - value)
+                return ValidationResult.VALUE_OVERFLOW;
+            outputSum += value;
+        }
+        if (inputSum < outputSum)
+            return ValidationResult.FEE_UNDERFLOW;
+
+        fee[x] = inputSum - outputSum;
+        parents[x] = Arrays.copyOf(txParents, numParents);
+        claims[x] = txClaims;
+        checks[x] = txChecks;
+        return ValidationResult.VALID;
+    }
+
+    /**
+     * Takes valid transactions in order of decreasing fee, each together with its ancestors that are
+     * not taken yet, as long as none of them claims an output already claimed.
+     */
+    private static boolean[] greedy(int[] order, long[] fee, int[][] parents, UTXO[][] claims) {
+        int n = order.length;
+        int[] rank = new int[n];
+        for (int i = 0; i < n; i++)
+            rank[order[i]] = i;
+        ArrayList<Integer> candidates = new ArrayList<>();
+        for (int x = 0; x < n; x++)
+            if (claims[x] != null)
+                candidates.add(x);
+        candidates.sort((a, b) -> fee[a] != fee[b] ? Long.compare(fee[b], fee[a]) : Integer.compare(a, b));
+
+        boolean[] chosen = new boolean[n];
+        // Claims are never released, so a transaction that cannot be taken once never can
+        boolean[] blocked = new boolean[n];
+        HashSet<UTXO> claimed = new HashSet<>();
+        for (int x : candidates) {
+            if (chosen[x] || blocked[x])
+                continue;
+            ArrayList<Integer> todo = new ArrayList<>();
+            HashSet<Integer> inPackage = new HashSet<>();
+            todo.add(x);
+            inPackage.add(x);
+            boolean fits = true;
+            for (int i = 0; i < todo.size() && fits; i++)
+                for (int parent : parents[todo.get(i)])
+                    if (blocked[parent])
+                        fits = false;
+                    else if (!chosen[parent] && inPackage.add(parent))
+                        todo.add(parent);
+
+            // Ancestors first, so a member spending from a blocked one is blocked too
+            todo.sort(Comparator.comparingInt(member -> rank[member]));
+            HashSet<UTXO> packageClaims = new HashSet<>();
+            for (int member : todo) {
+                if (!fits)
+                    break;
+                for (UTXO utxo : claims[member])
+                    if (claimed.contains(utxo))
+                        blocked[member] = true;
+                    else if (!packageClaims.add(utxo))
+                        fits = false;
+                for (int parent : parents[member])
+                    if (blocked[parent])
+                        blocked[member] = true;
+                if (blocked[member])
+                    fits = false;
+            }
+            // A later member may still be blocked, but then so are all its descendants, x among them
+            if (!fits) {
+                blocked[x] = true;
+                continue;
+            }
+            for (int member : todo)
+                chosen[member] = true;
+            claimed.addAll(packageClaims);
+        }
+        return chosen;
+    }
+
+    /** Replaces the greedy choice of each small component by an exact one while time is left */
+    private static void improve(int[] order, int[] component, long[] fee, int[][] parents,
+            UTXO[][] claims, boolean[] chosen) {
+        HashMap<Integer, ArrayList<Integer>> members = new HashMap<>();
+        for (int x : order)
+            if (claims[x] != null)
+                members.computeIfAbsent(find(component, x), root -> new ArrayList<>()).add(x);
+
+        long deadline = System.nanoTime() + TIME_BUDGET_NANOS;
+        int limit = Math.min(EXACT_COMPONENT_SIZE, 64);
+        for (ArrayList<Integer> group : members.values()) {
+            int k = group.size();
+            if (k < 2 || k > limit)
+                continue;
+            if (System.nanoTime() > deadline)
+                return;
+
+            HashMap<Integer, Integer> position = new HashMap<>();
+            for (int i = 0; i < k; i++)
+                position.put(group.get(i), i);
+            HashMap<UTXO, Long> claimants = new HashMap<>();
+            long[] groupFee = new long[k];
+            long[] parentMask = new long[k];
+            long[] conflictMask = new long[k];
+            long greedyMask = 0;
+            long greedyFee = 0;
+            for (int i = 0; i < k; i++) {
+                int x = group.get(i);
+                groupFee[i] = fee[x];
+                for (int parent : parents[x])
+                    parentMask[i] |= 1L << position.get(parent);
+                for (UTXO utxo : claims[x])
+                    claimants.merge(utxo, 1L << i, (a, b) -> a | b);
+                if (chosen[x]) {
+                    greedyMask |= 1L << i;
+                    greedyFee += fee[x];
+                }
+            }
+            for (long mask : claimants.values())
+                for (int i = 0; i < k; i++)
+                    if ((mask & (1L << i)) != 0)
+                        conflictMask[i] |= mask & ~(1L << i);
+
+            Search search = new Search(groupFee, parentMask, conflictMask, deadline);
+            search.best = greedyFee;
+            search.bestMask = greedyMask;
+            search.run(0, 0, 0);
+            // Add back members left out only because they add no fee; members are in spend order
+            long mask = search.bestMask;
+            for (int i = 0; i < k; i++)
+                if ((mask & parentMask[i]) == parentMask[i] && (mask & conflictMask[i]) == 0)
+                    mask |= 1L << i;
+            for (int i = 0; i < k; i++)
+                chosen[group.get(i)] = (mask & (1L << i)) != 0;
+        }
+    }
+
+    private static int find(int[] component, int x) {
+        while (component[x] != x) {
+            component[x] = component[component[x]];
+            x = component[x];
+        }
+        return x;
+    }
+
+    private static void union(int[] component, int a, int b) {
+        component[find(component, a)] = find(component, b);
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Validates transactions before they enter the transaction pool, so invalid ones never cost block
+ * creation any time. A batch goes through three stages:
+ * <ol>
+ * <li>context-free checks of each transaction on its own,</li>
+ * <li>input lookups against the tip UTXO pool, the pooled transactions and the batch, which give
+ * the fee and the signatures to check, all of which are then verified at once, and</li>
+ * <li>insertion with parents before children, refusing outputs already claimed in the pool.</li>
+ * </ol>
+ * Several threads may admit batches into the same pool at once. Parents and conflicts are checked
+ * again by the pool as each transaction goes in, so a parent evicted or a conflict added by another
+ * thread since the lookup is caught. So is a tip change since the lookup, which the pool reports as
+ * {@code STALE_TIP} for the caller to admit the transaction again against the new tip.
+ */
+public class MempoolAdmission {
+
+    private TransactionPool txPool;
+    private ForkJoinPool verifyPool;
+    private SignatureCache signatureCache;
+    private RejectionCounters rejections;
+
+    /**
+     * Creates an admission into {@code txPool} that verifies signatures on {@code verifyPool} (or
+     * serially if null) through {@code signatureCache} (if not null), counting every rejected
+     * transaction in {@code rejections}
+     */
+    public MempoolAdmission(TransactionPool txPool, ForkJoinPool verifyPool, SignatureCache signatureCache,
+            RejectionCounters rejections) {
+        this.txPool = txPool;
+        this.verifyPool = verifyPool;
+        this.signatureCache = signatureCache;
+        this.rejections = rejections;
+    }
+
+    /**
+     * Adds the valid transactions of {@code txs} to the pool. Transactions may spend outputs of
+     * {@code tip}, of pooled transactions and of each other, in any order.
+     *
+     * @return for each transaction {@code VALID} if it was added or already pooled, or else the
+     *         first reason it was rejected
+     */
+    public ValidationResult[] admit(UTXOPool tip, Transaction[] txs) {
+        return admit(tip, txPool.getTipGeneration(), txs);
+    }
+
+    /**
+     * Adds the valid transactions of {@code txs} like {@link #admit(UTXOPool, Transaction[])}, where
+     * {@code tip} is the tip at {@code tipGeneration} of the pool, which must be read first. Those
+     * not yet in when the tip changes again are not added and come back as {@code STALE_TIP}, which
+     * is not counted as a rejection.
+     */
+    public ValidationResult[] admit(UTXOPool tip, long tipGeneration, Transaction[] txs) {
+        int n = txs.length;
+        ValidationResult[] results = new ValidationResult[n];
+        long[] fees = new long[n];
+        ArrayList<List<byte[]>> parents = new ArrayList<>();
+        TxHandler.SignatureCheck[][] checks = new TxHandler.SignatureCheck[n][];
+
+        // Stage 1: context-free checks
+        HashMap<ByteArrayWrapper, Integer> batch = new HashMap<>();
+        for (int x = 0; x < n; x++) {
+            parents.add(null);
+            results[x] = checkContextFree(txs[x]);
+            if (results[x] == ValidationResult.VALID)
+                batch.putIfAbsent(new ByteArrayWrapper(txs[x].getHash()), x);
+        }
+
+        // Stage 2: look up inputs in spend order, so batch parents are resolved first
+        int[] order = TxHandler.spendOrder(txs, batch);
+        ArrayList<TxHandler.SignatureCheck> all = new ArrayList<>();
+        for (int x : order) {
+            if (results[x] != ValidationResult.VALID || txPool.getTransaction(txs[x].getHash()) != null)
+                continue;
+            results[x] = resolve(tip, txs, x, batch, results, fees, parents, checks);
+            if (results[x] == ValidationResult.VALID)
+                for (TxHandler.SignatureCheck check : checks[x])
+                    all.add(check);
+        }
+        TxHandler.verifyAll(verifyPool, signatureCache, all.toArray(new TxHandler.SignatureCheck[0]));
+
+        // Stage 3: insert, parents before children
+        for (int x : order) {
+            if (results[x] != ValidationResult.VALID || checks[x] == null)
+                continue;
+            results[x] = insert(txs[x], fees[x], parents.get(x), checks[x], tipGeneration);
+        }
+
+        for (ValidationResult result : results)
+            if (result != ValidationResult.STALE_TIP)
+                rejections.record(result);
+        return results;
+    }
+
+    private static ValidationResult checkContextFree(Transaction tx) {
+        if (tx.getHash() == null || tx.isCoinbase() || tx.numInputs() == 0)
+            return ValidationResult.MALFORMED;
+
+        HashSet<UTXO> claimed = new HashSet<>();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            if (input.prevTxHash == null || input.getSignature() == null || input.outputIndex < 0)
+                return ValidationResult.MALFORMED;
+            if (!claimed.add(new UTXO(input.prevTxHash, input.outputIndex)))
+                return ValidationResult.DOUBLE_SPEND;
+        }
+
+        long outputSum = 0;
+        for (int o = 0; o < tx.numOutputs(); o++) {
+            long value = tx.getOutput(o).value;
+            if (value < 0)
+                return ValidationResult.NEGATIVE_OUTPUT;
+            if (outputSum > Long.MAX_VALUE - value)
+                return ValidationResult.VALUE_OVERFLOW;
+            outputSum += value;
+        }
+        return ValidationResult.VALID;
+    }
+
+    /** Finds the output claimed by each input of {@code txs[x]} and computes the fee */
+    private ValidationResult resolve(UTXOPool tip, Transaction[] txs, int x,
+            HashMap<ByteArrayWrapper, Integer> batch, ValidationResult[] results, long[] fees,
+            ArrayList<List<byte[]>> parents, TxHandler.SignatureCheck[][] checks) {
+        Transaction tx = txs[x];
+        TxHandler.SignatureCheck[] txChecks = new TxHandler.SignatureCheck[tx.numInputs()];
+        ArrayList<byte[]> txParents = new ArrayList<>();
+        long inputSum = 0;
+
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            Transaction.Output origin = tip.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex));
+            if (origin == null) {
+                Transaction pooled = txPool.getTransaction(input.prevTxHash);
+                if (pooled != null) {
+                    origin = pooled.getOutput(input.outputIndex);
+                    txParents.add(input.prevTxHash);
+                } else {
+                    Integer parent = batch.get(new ByteArrayWrapper(input.prevTxHash));
+                    if (parent != null && parent != x && results[parent] == ValidationResult.VALID) {
+                        origin = txs[parent].getOutput(input.outputIndex);
+                        txParents.add(input.prevTxHash);
+                    }
+                }
+            }
+            if (origin == null)
+                return ValidationResult.MISSING_INPUT;
+            if (inputSum > Long.MAX_VALUE - origin.value)
+                return ValidationResult.VALUE_OVERFLOW;
+            inputSum += origin.value;
+            txChecks[i] = new TxHandler.SignatureCheck(origin, tx.getRawDataToSign(i), input.getSignature());
+        }
+
+        // Output values were checked for overflow by the context-free stage
+        long outputSum = 0;
+        for (int o = 0; o < tx.numOutputs(); o++)
+            outputSum += tx.getOutput(o).value;
+        if (inputSum < outputSum)
+            return ValidationResult.FEE_UNDERFLOW;
+
+        fees[x] = inputSum - outputSum;
+        parents.set(x, txParents);
+        checks[x] = txChecks;
+        return ValidationResult.VALID;
+    }
+
+    private ValidationResult insert(Transaction tx, long fee, List<byte[]> parents,
+            TxHandler.SignatureCheck[] txChecks, long tipGeneration) {
+        for (TxHandler.SignatureCheck check : txChecks)
+            if (!check.isValid())
+                return ValidationResult.BAD_SIGNATURE;
+        // A parent may have been refused or evicted, or the tip changed, after this transaction was resolved
+        return txPool.admit(tx, fee, parents, tipGeneration);
+    }
+}
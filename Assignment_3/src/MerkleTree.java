@@ -0,0 +1,72 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+/**
+ * Append-only Merkle tree over transaction hashes. Every level is kept, so appending a leaf only
+ * rehashes the path from that leaf to the root. As in Bitcoin, a node without a right sibling is
+ * paired with itself.
+ */
+public class MerkleTree {
+
+    public static final int HASH_SIZE = 32;
+
+    /** levels.get(0) holds the leaves, the last level holds the root */
+    private ArrayList<ArrayList<byte[]>> levels;
+    private MessageDigest md;
+
+    public MerkleTree() {
+        levels = new ArrayList<ArrayList<byte[]>>();
+        levels.add(new ArrayList<byte[]>());
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /** Appends {@code leaf} and updates its O(log n) ancestors */
+    public void addLeaf(byte[] leaf) {
+        ArrayList<byte[]> level = levels.get(0);
+        int index = level.size();
+        level.add(leaf);
+
+        for (int l = 0; levels.get(l).size() > 1; l++) {
+            level = levels.get(l);
+            int parentIndex = index / 2;
+            byte[] left = level.get(2 * parentIndex);
+            byte[] right = 2 * parentIndex + 1 < level.size() ? level.get(2 * parentIndex + 1) : left;
+            md.update(left);
+            md.update(right);
+            byte[] parent = md.digest();
+
+            if (l + 1 == levels.size())
+                levels.add(new ArrayList<byte[]>());
+            ArrayList<byte[]> parents = levels.get(l + 1);
+            if (parentIndex < parents.size())
+                parents.set(parentIndex, parent);
+            else
+                parents.add(parent);
+            index = parentIndex;
+        }
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /** Removes all leaves */
+    public void clear() {
+        levels.clear();
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /** @return the Merkle root, or {@code HASH_SIZE} zero bytes if the tree is empty */
+    public byte[] getRoot() {
+        ArrayList<byte[]> top = levels.get(levels.size() - 1);
+        if (top.isEmpty())
+            return new byte[HASH_SIZE];
+        return top.get(0);
+    }
+}
@@ -0,0 +1,208 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Open-addressing UTXO table stored in a direct {@code ByteBuffer}, keyed by the 32-byte hash of
+ * the transaction and the output index. Each coin takes one fixed-size slot outside the Java heap
+ * instead of a {@code UTXO}, a copied hash array and a map node. Addresses are interned on the heap
+ * and referenced from slots by id, since there are far fewer addresses than coins.
+ *
+ * <p>
+ * Lookups return slot offsets, so reading a value or an address allocates nothing. The table is not
+ * thread-safe.
+ */
+public class OffHeapUTXOTable {
+
+    public static final int HASH_SIZE = 32;
+
+    // Slot layout: state, output index, transaction hash, value, address id
+    private static final int STATE = 0;
+    private static final int INDEX = 4;
+    private static final int HASH = 8;
+    private static final int VALUE = HASH + HASH_SIZE;
+    private static final int ADDRESS = VALUE + Long.BYTES;
+    /** The int address id is followed by 4 bytes of padding, so the value of every slot is 8-byte aligned */
+    private static final int SLOT_SIZE = ADDRESS + Integer.BYTES + 4;
+
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte DELETED = 2;
+
+    private static final int MAX_SLOTS = Integer.MAX_VALUE / SLOT_SIZE;
+
+    private ByteBuffer slots;
+    private int capacity;
+    private int size;
+    /** full and deleted slots, which both lengthen probe sequences */
+    private int used;
+
+    private ArrayList<PublicKey> addresses;
+    private HashMap<PublicKey, Integer> addressIds;
+
+    /** Creates a table sized to hold {@code expectedSize} coins without growing */
+    public OffHeapUTXOTable(int expectedSize) {
+        capacity = tableSizeFor(expectedSize);
+        slots = allocate(capacity);
+        addresses = new ArrayList<PublicKey>();
+        addressIds = new HashMap<PublicKey, Integer>();
+    }
+
+    /** Maps output {@code index} of {@code txHash} to {@code value} and {@code address} */
+    public void put(byte[] txHash, int index, long value, PublicKey address) {
+        checkHash(txHash);
+        if ((used + 1) * 4L > capacity * 3L)
+            resize(size * 4L > capacity ? capacity * 2 : capacity);
+
+        int slot = probe(txHash, index);
+        int offset = slot * SLOT_SIZE;
+        if (slots.get(offset + STATE) != FULL) {
+            if (slots.get(offset + STATE) == EMPTY)
+                used++;
+            size++;
+            slots.put(offset + STATE, FULL);
+            slots.putInt(offset + INDEX, index);
+            for (int i = 0; i < HASH_SIZE; i++)
+                slots.put(offset + HASH + i, txHash[i]);
+        }
+        slots.putLong(offset + VALUE, value);
+        slots.putInt(offset + ADDRESS, addressId(address));
+    }
+
+    /** Removes the output {@code index} of transaction {@code txHash} if present */
+    public boolean remove(byte[] txHash, int index) {
+        int offset = find(txHash, index);
+        if (offset < 0)
+            return false;
+        slots.put(offset + STATE, DELETED);
+        size--;
+        return true;
+    }
+
+    /**
+     * @return the offset of the slot holding output {@code index} of transaction {@code txHash}, or
+     *         -1 if it is not in the table
+     */
+    public int find(byte[] txHash, int index) {
+        checkHash(txHash);
+        int offset = probe(txHash, index) * SLOT_SIZE;
+        return slots.get(offset + STATE) == FULL ? offset : -1;
+    }
+
+    public boolean contains(byte[] txHash, int index) {
+        return find(txHash, index) >= 0;
+    }
+
+    /** @return the value stored in the slot at {@code offset} returned by {@code find} */
+    public long getValue(int offset) {
+        return slots.getLong(offset + VALUE);
+    }
+
+    /** @return the address stored in the slot at {@code offset} returned by {@code find} */
+    public PublicKey getAddress(int offset) {
+        return addresses.get(slots.getInt(offset + ADDRESS));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** @return the off-heap bytes reserved for slots */
+    public long getReservedBytes() {
+        return (long) capacity * SLOT_SIZE;
+    }
+
+    /**
+     * @return the slot holding the key, or else the first deleted slot on its probe sequence, or
+     *         else the empty slot ending it
+     */
+    private int probe(byte[] txHash, int index) {
+        int mask = capacity - 1;
+        int slot = (int) hash(txHash, index) & mask;
+        int firstDeleted = -1;
+        while (true) {
+            int offset = slot * SLOT_SIZE;
+            byte state = slots.get(offset + STATE);
+            if (state == EMPTY)
+                return firstDeleted >= 0 ? firstDeleted : slot;
+            if (state == DELETED) {
+                if (firstDeleted < 0)
+                    firstDeleted = slot;
+            } else if (matches(offset, txHash, index)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean matches(int offset, byte[] txHash, int index) {
+        if (slots.getInt(offset + INDEX) != index)
+            return false;
+        for (int i = 0; i < HASH_SIZE; i++)
+            if (slots.get(offset + HASH + i) != txHash[i])
+                return false;
+        return true;
+    }
+
+    /** Hashes are already uniform, so mixing their first eight bytes with the index suffices */
+    private static long hash(byte[] txHash, int index) {
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (txHash[i] & 0xff);
+        h ^= index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return h ^ (h >>> 16);
+    }
+
+    private void resize(int newCapacity) {
+        if (newCapacity > MAX_SLOTS)
+            throw new IllegalStateException("UTXO table is full");
+        ByteBuffer old = slots;
+        int oldCapacity = capacity;
+        capacity = newCapacity;
+        slots = allocate(capacity);
+        used = size;
+
+        byte[] txHash = new byte[HASH_SIZE];
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int from = slot * SLOT_SIZE;
+            if (old.get(from + STATE) != FULL)
+                continue;
+            for (int i = 0; i < HASH_SIZE; i++)
+                txHash[i] = old.get(from + HASH + i);
+            int to = probe(txHash, old.getInt(from + INDEX)) * SLOT_SIZE;
+            for (int i = 0; i < SLOT_SIZE; i++)
+                slots.put(to + i, old.get(from + i));
+        }
+    }
+
+    private int addressId(PublicKey address) {
+        Integer id = addressIds.get(address);
+        if (id == null) {
+            id = addresses.size();
+            addresses.add(address);
+            addressIds.put(address, id);
+        }
+        return id;
+    }
+
+    private static void checkHash(byte[] txHash) {
+        if (txHash == null || txHash.length != HASH_SIZE)
+            throw new IllegalArgumentException("transaction hash must be " + HASH_SIZE + " bytes");
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * SLOT_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    /** @return the smallest power of two with room for {@code expectedSize} at 3/4 load */
+    private static int tableSizeFor(int expectedSize) {
+        long needed = Math.max(16, expectedSize * 4L / 3 + 1);
+        long capacity = Long.highestOneBit(needed - 1) << 1;
+        if (capacity > MAX_SLOTS)
+            throw new IllegalArgumentException("too many UTXOs for one table: " + expectedSize);
+        return (int) capacity;
+    }
+}
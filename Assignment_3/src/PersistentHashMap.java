@@ -0,0 +1,269 @@
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable hash array mapped trie. {@code put} and {@code remove} return a new map that shares all
+ * untouched nodes with this one, so copying a map is free and an update only copies the O(log32 n)
+ * nodes on the path to the changed entry.
+ */
+public final class PersistentHashMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    /** Returned by node lookups for absent keys, since null is a valid value */
+    private static final Object NOT_FOUND = new Object();
+
+    @SuppressWarnings("rawtypes")
+    private static final PersistentHashMap EMPTY = new PersistentHashMap(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /** @return the empty map */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    /** @return the value mapped to {@code key}, or null if there is none */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null)
+            return null;
+        Object value = root.get(0, key.hashCode(), key);
+        return value == NOT_FOUND ? null : (V) value;
+    }
+
+    public boolean containsKey(Object key) {
+        return root != null && root.get(0, key.hashCode(), key) != NOT_FOUND;
+    }
+
+    /** @return a map with {@code key} mapped to {@code value} */
+    public PersistentHashMap<K, V> put(K key, V value) {
+        Node start = root == null ? BitmapNode.EMPTY : root;
+        boolean[] added = new boolean[1];
+        Node newRoot = start.put(0, key.hashCode(), key, value, added);
+        if (newRoot == root)
+            return this;
+        return new PersistentHashMap<K, V>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /** @return a map without {@code key} */
+    public PersistentHashMap<K, V> remove(Object key) {
+        if (root == null)
+            return this;
+        Node newRoot = root.remove(0, key.hashCode(), key);
+        if (newRoot == root)
+            return this;
+        return new PersistentHashMap<K, V>(newRoot, size - 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Calls {@code action} for every entry, in no particular order */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null)
+            root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private abstract static class Node {
+        /** @return the value of {@code key}, or {@code NOT_FOUND} */
+        abstract Object get(int shift, int hash, Object key);
+
+        abstract Node put(int shift, int hash, Object key, Object value, boolean[] added);
+
+        /** @return the node without {@code key}, this node if it is absent, or null if now empty */
+        abstract Node remove(int shift, int hash, Object key);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    /**
+     * Node with up to 32 slots selected by 5 bits of the hash. Slot {@code i} is stored at
+     * {@code array[2i], array[2i+1]} as either a key and its value or null and a child node.
+     */
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object get(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return NOT_FOUND;
+            int i = index(bit);
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null)
+                return ((Node) v).get(shift + BITS, hash, key);
+            return key.equals(k) ? v : NOT_FOUND;
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, 2 * i);
+                newArray[2 * i] = key;
+                newArray[2 * i + 1] = value;
+                System.arraycopy(array, 2 * i, newArray, 2 * i + 2, array.length - 2 * i);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(shift + BITS, hash, key, value, added);
+                return child == v ? this : with(i, null, child);
+            }
+            if (key.equals(k))
+                return v == value ? this : with(i, k, value);
+
+            added[0] = true;
+            return with(i, null, createNode(shift + BITS, k, v, hash, key, value));
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            int i = index(bit);
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(shift + BITS, hash, key);
+                if (child == v)
+                    return this;
+                if (child != null)
+                    return with(i, null, child);
+            } else if (!key.equals(k)) {
+                return this;
+            }
+
+            if (bitmap == bit)
+                return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, 2 * i);
+            System.arraycopy(array, 2 * i + 2, newArray, 2 * i, newArray.length - 2 * i);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null)
+                    ((Node) array[i + 1]).forEach(action);
+                else
+                    action.accept(array[i], array[i + 1]);
+            }
+        }
+
+        private BitmapNode with(int i, Object key, Object value) {
+            Object[] newArray = array.clone();
+            newArray[2 * i] = key;
+            newArray[2 * i + 1] = value;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        private static Node createNode(int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+            int h1 = k1.hashCode();
+            if (h1 == h2)
+                return new CollisionNode(h1, new Object[] { k1, v1, k2, v2 });
+            boolean[] added = new boolean[1];
+            return EMPTY.put(shift, h1, k1, v1, added).put(shift, h2, k2, v2, added);
+        }
+    }
+
+    /** Leaf holding all entries whose keys share the full 32-bit {@code hash} */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+        private final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int find(Object key) {
+            for (int i = 0; i < array.length; i += 2)
+                if (key.equals(array[i]))
+                    return i;
+            return -1;
+        }
+
+        @Override
+        Object get(int shift, int hash, Object key) {
+            int i = find(key);
+            return i < 0 ? NOT_FOUND : array[i + 1];
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                // Push this node one level down next to the new key
+                Node wrapper = new BitmapNode(bit(this.hash, shift), new Object[] { null, this });
+                return wrapper.put(shift, hash, key, value, added);
+            }
+            int i = find(key);
+            if (i >= 0) {
+                if (array[i + 1] == value)
+                    return this;
+                Object[] newArray = array.clone();
+                newArray[i + 1] = value;
+                return new CollisionNode(hash, newArray);
+            }
+            Object[] newArray = new Object[array.length + 2];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int i = find(key);
+            if (i < 0)
+                return this;
+            if (array.length == 2)
+                return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, newArray.length - i);
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2)
+                action.accept(array[i], array[i + 1]);
+        }
+    }
+}
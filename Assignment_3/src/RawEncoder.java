@@ -0,0 +1,49 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Writes the raw big-endian encoding of transactions and blocks either straight into a
+ * {@code ByteBuffer} or into a {@code MessageDigest}, so no intermediate byte lists are built
+ */
+public class RawEncoder {
+
+    private ByteBuffer buffer;
+    private MessageDigest digest;
+
+    /** Creates an encoder writing into {@code buffer}, which can be cleared and reused by the caller */
+    public RawEncoder(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /** Creates an encoder feeding every written byte into {@code digest} */
+    public RawEncoder(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    public void putBytes(byte[] b) {
+        if (buffer != null)
+            buffer.put(b);
+        else
+            digest.update(b);
+    }
+
+    public void putInt(int v) {
+        if (buffer != null) {
+            buffer.putInt(v);
+        } else {
+            digest.update((byte) (v >>> 24));
+            digest.update((byte) (v >>> 16));
+            digest.update((byte) (v >>> 8));
+            digest.update((byte) v);
+        }
+    }
+
+    public void putLong(long v) {
+        if (buffer != null) {
+            buffer.putLong(v);
+        } else {
+            putInt((int) (v >>> 32));
+            putInt((int) v);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Number of rejections per {@link ValidationResult}, updated without locking so that validation
+ * threads never wait on each other to record a result. Logging is left to whoever reads them.
+ */
+public class RejectionCounters {
+
+    private final AtomicLongArray counts = new AtomicLongArray(ValidationResult.values().length);
+
+    /** Counts {@code result} unless it is {@code VALID}, and returns it */
+    public ValidationResult record(ValidationResult result) {
+        if (result != ValidationResult.VALID)
+            counts.incrementAndGet(result.ordinal());
+        return result;
+    }
+
+    /** @return the number of rejections for {@code reason} */
+    public long get(ValidationResult reason) {
+        return counts.get(reason.ordinal());
+    }
+
+    /** @return the number of rejections for any reason */
+    public long total() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++)
+            total += counts.get(i);
+        return total;
+    }
+}
@@ -0,0 +1,104 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread-safe set of signature checks that already succeeded, so the same input verified
+ * at mempool admission, block creation and block connect only pays for one RSA verification.
+ * Entries are keyed by SHA-256 over the signed data, the encoded public key and the signature, and
+ * split into stripes that each evict their least recently used entry when full.
+ */
+public class SignatureCache {
+
+    private static final int STRIPES = 16;
+
+    private final LinkedHashMap<ByteArrayWrapper, Boolean>[] stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** Creates a cache holding at most about {@code capacity} successful checks */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public SignatureCache(int capacity) {
+        final int stripeCapacity = Math.max(1, capacity / STRIPES);
+        stripes = new LinkedHashMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LinkedHashMap<ByteArrayWrapper, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+                    return size() > stripeCapacity;
+                }
+            };
+        }
+    }
+
+    /**
+     * @return true if {@code signature} of {@code message} under {@code pubKey} is valid, looking it
+     *         up in the cache first and only remembering successful verifications
+     */
+    public boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (pubKey == null || signature == null)
+            return Crypto.verifySignature(pubKey, message, signature);
+
+        ByteArrayWrapper key = key(pubKey, message, signature);
+        LinkedHashMap<ByteArrayWrapper, Boolean> stripe = stripeFor(key);
+        synchronized (stripe) {
+            if (stripe.get(key) != null) {
+                hits.increment();
+                return true;
+            }
+        }
+        misses.increment();
+
+        if (!Crypto.verifySignature(pubKey, message, signature))
+            return false;
+        synchronized (stripe) {
+            stripe.put(key, Boolean.TRUE);
+        }
+        return true;
+    }
+
+    /** @return the number of lookups answered from the cache */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of lookups that needed a full verification */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the number of cached successful checks */
+    public int size() {
+        int size = 0;
+        for (LinkedHashMap<ByteArrayWrapper, Boolean> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private LinkedHashMap<ByteArrayWrapper, Boolean> stripeFor(ByteArrayWrapper key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private static ByteArrayWrapper key(PublicKey pubKey, byte[] message, byte[] signature) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            RawEncoder out = new RawEncoder(md);
+            // Length prefixes keep the three fields from running into each other
+            byte[] encodedKey = pubKey.getEncoded();
+            out.putInt(message.length);
+            out.putBytes(message);
+            out.putInt(encodedKey.length);
+            out.putBytes(encodedKey);
+            out.putBytes(signature);
+            return new ByteArrayWrapper(md.digest());
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+}
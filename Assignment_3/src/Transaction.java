@@ -3,19 +3,36 @@ import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A transaction spending outputs of earlier transactions into new outputs. {@code finalize}
+ * computes the hash and freezes the transaction: every method that would change it then throws
+ * {@code IllegalStateException}, and {@code getInputs} and {@code getOutputs} return read-only
+ * lists. They return {@code List} instead of {@code ArrayList} for that reason, so callers declaring
+ * {@code ArrayList} variables have to change.
+ *
+ * <p>
+ * The fields of {@link Input} and {@link Output} stay public and final for existing callers; the
+ * signature is only set through {@code addSignature} and read through {@code getSignature}. Every
+ * change goes through a method that rejects it once finalized. {@code getHash} returns a copy, but
+ * the input hash and signature arrays are shared, and callers must not modify them.
+ */
 public class Transaction {
 
+    /** number of satoshis, the smallest unit of value, in one bitcoin */
+    public static final long COIN = 100000000L;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
-        public byte[] prevTxHash;
+        public final byte[] prevTxHash;
         /** used output's index in the previous transaction */
-        public int outputIndex;
-        /** the signature produced to check validity */
-        public byte[] signature;
+        public final int outputIndex;
+        /** the signature produced to check validity, set through {@code addSignature} */
+        private byte[] signature;
 
         public Input(byte[] prevHash, int index) {
             if (prevHash == null)
@@ -26,12 +43,18 @@ public class Transaction {
         }
 
         public void addSignature(byte[] sig) {
+            checkMutable();
             if (sig == null)
                 signature = null;
             else
                 signature = Arrays.copyOf(sig, sig.length);
         }
 
+        /** @return the signature, or null if none was added; shared, so callers must not modify it */
+        public byte[] getSignature() {
+            return signature;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -69,14 +92,22 @@ public class Transaction {
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value in satoshis of the output */
+        public final long value;
         /** the address or public key of the recipient */
-        public PublicKey address;
+        public final PublicKey address;
+        /** interned encoding of {@code address} */
+        private final EncodedKey encodedAddress;
 
-        public Output(double v, PublicKey addr) {
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
+            encodedAddress = addr == null ? null : EncodedKey.intern(addr);
+        }
+
+        /** @return the canonical encoding of {@code address}, computed once per key */
+        public EncodedKey getEncodedAddress() {
+            return encodedAddress;
         }
 
         public boolean equals(Object other) {
@@ -91,29 +122,29 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
-                return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
-                return false;
-            return true;
+            // Interned, so equal keys are usually the same instance
+            return getEncodedAddress().equals(op.getEncodedAddress());
         }
 
         public int hashCode() {
             int hash = 1;
-            hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            hash = hash * 17 + Long.hashCode(value);
+            hash = hash * 31 + getEncodedAddress().hashCode();
             return hash;
         }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
+    /** hash of the current contents, cached until the next change; {@code hash} once finalized */
+    private byte[] id;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
     private boolean coinbase;
+    /** set by {@code finalize}; a finalized transaction rejects every further change */
+    private boolean finalized;
+    /** length of the raw transaction, cached once finalized */
+    private int rawTxSize = -1;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -121,15 +152,24 @@ public class Transaction {
         coinbase = false;
     }
 
+    /** creates a modifiable copy of {@code tx}, even if {@code tx} is finalized */
     public Transaction(Transaction tx) {
-        hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        if (tx.hash != null)
+            hash = tx.hash.clone();
+        inputs = new ArrayList<Input>();
+        outputs = new ArrayList<Output>();
+        for (Input in : tx.inputs) {
+            Input copy = new Input(in.prevTxHash, in.outputIndex);
+            copy.addSignature(in.signature);
+            inputs.add(copy);
+        }
+        for (Output op : tx.outputs)
+            outputs.add(new Output(op.value, op.address));
         coinbase = false;
     }
 
     /** create a coinbase transaction of value {@code coin} and calls finalize on it */
-    public Transaction(double coin, PublicKey address) {
+    public Transaction(long coin, PublicKey address) {
         coinbase = true;
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
@@ -141,21 +181,37 @@ public class Transaction {
         return coinbase;
     }
 
+    /** @return true once {@code finalize} has been called; the transaction is then immutable */
+    public boolean isFinalized() {
+        return finalized;
+    }
+
+    /** Called before every change, which it rejects once finalized and which invalidates the id */
+    private void checkMutable() {
+        if (finalized)
+            throw new IllegalStateException("transaction is finalized");
+        id = null;
+    }
+
     public void addInput(byte[] prevTxHash, int outputIndex) {
+        checkMutable();
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
     }
 
-    public void addOutput(double value, PublicKey address) {
+    public void addOutput(long value, PublicKey address) {
+        checkMutable();
         Output op = new Output(value, address);
         outputs.add(op);
     }
 
     public void removeInput(int index) {
+        checkMutable();
         inputs.remove(index);
     }
 
     public void removeInput(UTXO ut) {
+        checkMutable();
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
@@ -166,106 +222,127 @@ public class Transaction {
         }
     }
 
+    /** @return the exact length in bytes of {@code getRawDataToSign(index)} */
+    public int getRawDataToSignSize(int index) {
+        Input in = inputs.get(index);
+        int size = Integer.SIZE / 8;
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        for (Output op : outputs)
+            size += getRawOutputSize(op);
+        return size;
+    }
+
+    /** writes the data signed by the {@code index}th input: its outpoint followed by all outputs */
+    public void encodeRawDataToSign(int index, RawEncoder out) {
+        Input in = inputs.get(index);
+        if (in.prevTxHash != null)
+            out.putBytes(in.prevTxHash);
+        out.putInt(in.outputIndex);
+        for (Output op : outputs)
+            encodeRawOutput(op, out);
+    }
+
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
+        byte[] sigD = new byte[getRawDataToSignSize(index)];
+        encodeRawDataToSign(index, new RawEncoder(ByteBuffer.wrap(sigD)));
         return sigD;
     }
 
     public void addSignature(byte[] signature, int index) {
+        checkMutable();
         inputs.get(index).addSignature(signature);
     }
 
-    public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+    /** @return the exact length in bytes of {@code getRawTx()} */
+    public int getRawTxSize() {
+        if (rawTxSize >= 0)
+            return rawTxSize;
+        int size = 0;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            size += Integer.SIZE / 8;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+        for (Output op : outputs)
+            size += getRawOutputSize(op);
+        return size;
+    }
+
+    /** writes all inputs with their signatures followed by all outputs */
+    public void encodeRawTx(RawEncoder out) {
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                out.putBytes(in.prevTxHash);
+            out.putInt(in.outputIndex);
+            if (in.signature != null)
+                out.putBytes(in.signature);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
+        for (Output op : outputs)
+            encodeRawOutput(op, out);
+    }
+
+    public byte[] getRawTx() {
+        byte[] tx = new byte[getRawTxSize()];
+        encodeRawTx(new RawEncoder(ByteBuffer.wrap(tx)));
         return tx;
     }
 
+    private static int getRawOutputSize(Output op) {
+        return Long.SIZE / 8 + op.getEncodedAddress().size();
+    }
+
+    private static void encodeRawOutput(Output op, RawEncoder out) {
+        out.putLong(op.value);
+        out.putBytes(op.getEncodedAddress().getEncoding());
+    }
+
+    /**
+     * computes the transaction hash and freezes the transaction, so the hash and the cached raw size
+     * stay valid; calling it again has no effect
+     */
     public void finalize() {
+        if (finalized)
+            return;
+        hash = computeHash();
+        id = hash;
+        rawTxSize = getRawTxSize();
+        finalized = true;
+    }
+
+    private byte[] computeHash() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
+            encodeRawTx(new RawEncoder(md));
+            return md.digest();
         } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+            throw new IllegalStateException(x);
         }
     }
 
     public void setHash(byte[] h) {
-        hash = h;
+        checkMutable();
+        hash = h == null ? null : h.clone();
     }
 
+    /** @return a copy of the hash, or null before {@code finalize} if none was set */
     public byte[] getHash() {
-        return hash;
+        return hash == null ? null : hash.clone();
     }
 
-    public ArrayList<Input> getInputs() {
-        return inputs;
+    /** @return a read-only view of the inputs; changes go through the methods that check finalize */
+    public List<Input> getInputs() {
+        return Collections.unmodifiableList(inputs);
     }
 
-    public ArrayList<Output> getOutputs() {
-        return outputs;
+    /** @return a read-only view of the outputs; changes go through the methods that check finalize */
+    public List<Output> getOutputs() {
+        return Collections.unmodifiableList(outputs);
     }
 
     public Input getInput(int index) {
@@ -290,7 +367,14 @@ public class Transaction {
         return outputs.size();
     }
 
+    /**
+     * Transactions are equal if they have the same raw contents, i.e. the same hash. Finalized
+     * transactions compare their hashes; others hash their contents once until they change.
+     */
     public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
         if (other == null) {
             return false;
         }
@@ -299,33 +383,18 @@ public class Transaction {
         }
 
         Transaction tx = (Transaction) other;
-        // inputs and outputs should be same
-        if (tx.numInputs() != numInputs())
-            return false;
-
-        for (int i = 0; i < numInputs(); i++) {
-            if (!getInput(i).equals(tx.getInput(i)))
-                return false;
-        }
-
-        if (tx.numOutputs() != numOutputs())
-            return false;
-
-        for (int i = 0; i < numOutputs(); i++) {
-            if (!getOutput(i).equals(tx.getOutput(i)))
-                return false;
-        }
-        return true;
+        return Arrays.equals(getId(), tx.getId());
     }
 
     public int hashCode() {
-        int hash = 1;
-        for (int i = 0; i < numInputs(); i++) {
-            hash = hash * 31 + getInput(i).hashCode();
-        }
-        for (int i = 0; i < numOutputs(); i++) {
-            hash = hash * 31 + getOutput(i).hashCode();
-        }
-        return hash;
+        byte[] id = getId();
+        // The hash is uniformly distributed, so its first four bytes are a good hash code
+        return (id[0] & 0xff) << 24 | (id[1] & 0xff) << 16 | (id[2] & 0xff) << 8 | (id[3] & 0xff);
+    }
+
+    private byte[] getId() {
+        if (id == null)
+            id = computeHash();
+        return id;
     }
 }
@@ -1,38 +1,837 @@
-
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Pending transactions, safe for many threads adding at once. An add locks only the stripes of its
+ * hash and of the outputs it claims, so adds of unrelated transactions run in parallel under the
+ * read side of a pool lock, while removals and evictions take the write side. A snapshot only needs
+ * the read side too: it leaves out transactions whose add had not finished when it started, and as
+ * a transaction is added only after its pooled parents, it never holds a child without its parent.
+ *
+ * <p>
+ * Each transaction also knows the pooled transactions it spends from and those spending from it,
+ * with the total fee and size of its ancestors and of its descendants. These totals are updated as
+ * transactions come and go, so a block template can take a low-fee parent for the sake of its
+ * high-fee child by ordering packages by ancestor fee rate.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    /** Memory budget of a pool created without one, in bytes */
+    public static long DEFAULT_MAX_BYTES = 300L * 1000 * 1000;
+
+    /** Added to the fee rate of an evicted transaction to get the new minimum, per 1000 bytes */
+    public static long INCREMENTAL_FEE_RATE = 1000;
+
+    /** Estimated heap bytes of an entry and its indexes, besides the raw transaction bytes */
+    private static final int ENTRY_OVERHEAD = 320;
+    private static final int INPUT_OVERHEAD = 160;
+    private static final int OUTPUT_OVERHEAD = 64;
+
+    /** Number of locks adds are striped over; a power of two */
+    private static final int STRIPES = 64;
+
+    /** A pooled transaction with the fee it pays, computed once when it was added */
+    private static class Entry {
+        private final Transaction tx;
+        private final long fee;
+        private final int size;
+        /** estimated heap bytes held by the pool for this transaction */
+        private final long bytes;
+        /** order of arrival, which breaks ties between equal fee rates and bounds snapshots */
+        private final long sequence;
+        /** the outputs claimed by the inputs */
+        private final UTXO[] spends;
+        /** pooled transactions this one spends from; changed only under the write lock */
+        private final ArrayList<Entry> parents = new ArrayList<Entry>(1);
+        /** pooled transactions spending from this one; guarded by this entry */
+        private final ArrayList<Entry> children = new ArrayList<Entry>(1);
+        /** totals over this transaction and its pooled ancestors; changed only under the write lock */
+        private long ancestorFee;
+        private long ancestorSize;
+        private int ancestorCount;
+        /** totals over this transaction and its pooled descendants; guarded by this entry */
+        private long descendantFee;
+        private long descendantSize;
+        private int descendantCount;
+        /** the descendant totals as last indexed in {@code byDescendantFeeRate}; guarded by this entry */
+        private DescendantScore descendantScore;
+
+        private Entry(Transaction tx, long fee, long sequence) {
+            this.tx = tx;
+            this.fee = fee;
+            this.size = tx.getRawTxSize();
+            this.bytes = size + ENTRY_OVERHEAD + (long) INPUT_OVERHEAD * tx.numInputs()
+                    + (long) OUTPUT_OVERHEAD * tx.numOutputs();
+            this.sequence = sequence;
+            spends = new UTXO[tx.numInputs()];
+            for (int i = 0; i < spends.length; i++) {
+                Transaction.Input input = tx.getInput(i);
+                if (input.prevTxHash != null)
+                    spends[i] = new UTXO(input.prevTxHash, input.outputIndex);
+            }
+            ancestorFee = descendantFee = fee;
+            ancestorSize = descendantSize = size;
+            ancestorCount = descendantCount = 1;
+        }
+    }
+
+    /**
+     * The descendant totals of an entry at one point in time. Replaced rather than changed, so the
+     * index sorted by them stays consistent while adds update the totals concurrently.
+     */
+    private static class DescendantScore {
+        private final Entry entry;
+        private final long fee;
+        private final long size;
+
+        private DescendantScore(Entry entry) {
+            this.entry = entry;
+            this.fee = entry.descendantFee;
+            this.size = entry.descendantSize;
+        }
+    }
+
+    /** A transaction of a block template with the totals of its ancestors not taken yet */
+    private static class Candidate {
+        private final Entry entry;
+        private long fee;
+        private long size;
+
+        private Candidate(Entry entry) {
+            this.entry = entry;
+            this.fee = entry.ancestorFee;
+            this.size = entry.ancestorSize;
+        }
+    }
+
+    /** Highest fee per byte first, comparing {@code fee * size} exactly in 128 bits */
+    private static final Comparator<Entry> BY_FEE_RATE = (a, b) -> {
+        int c = compareProducts(b.fee, a.size, a.fee, b.size);
+        return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+    };
+
+    /** Highest fee per byte of a transaction together with its pooled ancestors first */
+    private static final Comparator<Entry> BY_ANCESTOR_FEE_RATE = (a, b) -> {
+        int c = compareProducts(b.ancestorFee, a.ancestorSize, a.ancestorFee, b.ancestorSize);
+        return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+    };
+
+    /** Highest fee per byte of a transaction together with its pooled descendants first */
+    private static final Comparator<DescendantScore> BY_DESCENDANT_FEE_RATE = (a, b) -> {
+        int c = compareProducts(b.fee, a.size, a.fee, b.size);
+        return c != 0 ? c : Long.compare(a.entry.sequence, b.entry.sequence);
+    };
+
+    private static final Comparator<Candidate> BY_CANDIDATE_FEE_RATE = (a, b) -> {
+        int c = compareProducts(b.fee, a.size, a.fee, b.size);
+        return c != 0 ? c : Long.compare(a.entry.sequence, b.entry.sequence);
+    };
+
+    /** Entries by hash; an add puts its entry here last, once it is in the other indexes */
+    private ConcurrentHashMap<ByteArrayWrapper, Entry> H;
+    private ConcurrentSkipListSet<Entry> byFeeRate;
+    private ConcurrentSkipListSet<Entry> byAncestorFeeRate;
+    /** Evictions take the last package, so a child paying for its parent keeps both */
+    private ConcurrentSkipListSet<DescendantScore> byDescendantFeeRate;
+    /**
+     * Pooled transactions claiming each output; conflicting transactions share a list. A list is
+     * only touched holding the stripe lock of its output or the write lock.
+     */
+    private ConcurrentHashMap<UTXO, ArrayList<Entry>> spentBy;
+    private AtomicLong nextSequence;
+
+    private ReentrantReadWriteLock poolLock;
+    private ReentrantLock[] stripes;
+
+    private long maxBytes;
+    private AtomicLong bytes;
+    /** fee per 1000 bytes a transaction must pay to be added, raised by evictions */
+    private volatile long minFeeRate;
+    private AtomicLong evictions;
+    /** number of tip changes seen, raised under the write lock by the block paths */
+    private volatile long tipGeneration;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /** Creates a pool holding transactions of at most {@code maxBytes} estimated heap bytes */
+    public TransactionPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        H = new ConcurrentHashMap<ByteArrayWrapper, Entry>();
+        byFeeRate = new ConcurrentSkipListSet<Entry>(BY_FEE_RATE);
+        byAncestorFeeRate = new ConcurrentSkipListSet<Entry>(BY_ANCESTOR_FEE_RATE);
+        byDescendantFeeRate = new ConcurrentSkipListSet<DescendantScore>(BY_DESCENDANT_FEE_RATE);
+        spentBy = new ConcurrentHashMap<UTXO, ArrayList<Entry>>();
+        nextSequence = new AtomicLong();
+        poolLock = new ReentrantReadWriteLock();
+        stripes = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new ReentrantLock();
+        bytes = new AtomicLong();
+        evictions = new AtomicLong();
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        this(txPool.maxBytes);
+        txPool.poolLock.writeLock().lock();
+        try {
+            // Entries link to each other, so the copy gets its own, added parents first
+            ArrayList<Entry> entries = new ArrayList<Entry>(txPool.H.values());
+            entries.sort(Comparator.comparingLong(entry -> entry.sequence));
+            for (Entry entry : entries)
+                addTransaction(entry.tx, entry.fee);
+            minFeeRate = txPool.minFeeRate;
+            evictions.set(txPool.evictions.get());
+        } finally {
+            txPool.poolLock.writeLock().unlock();
+        }
+    }
+
+    /** Adds {@code tx} as paying no fee */
+    public boolean addTransaction(Transaction tx) {
+        return addTransaction(tx, 0);
+    }
+
+    /**
+     * Adds {@code tx}, which pays {@code fee}, even if it conflicts with pooled transactions; a
+     * transaction already pooled is kept as it is. While the pool is over its memory budget, the
+     * transaction whose package with its descendants pays the lowest fee per byte is evicted with
+     * them, and the minimum fee rate rises above that of the package. A child paying for its parent
+     * thus keeps the parent in the pool.
+     *
+     * @return false if {@code tx} pays less than the minimum fee rate or was evicted right away
+     */
+    public boolean addTransaction(Transaction tx, long fee) {
+        return add(tx, fee, null, false, -1) == ValidationResult.VALID;
     }
 
-    public void addTransaction(Transaction tx) {
+    /**
+     * Adds {@code tx} like {@link #addTransaction(Transaction, long)}, but only if every hash in
+     * {@code parents} is pooled and no pooled transaction claims an output {@code tx} claims, which
+     * is checked atomically with the insertion.
+     *
+     * @return {@code VALID} if {@code tx} is pooled, or else {@code MISSING_INPUT},
+     *         {@code DOUBLE_SPEND} or {@code LOW_FEE}
+     */
+    public ValidationResult admit(Transaction tx, long fee, List<byte[]> parents) {
+        return add(tx, fee, parents, true, -1);
+    }
+
+    /**
+     * Admits {@code tx} like {@link #admit(Transaction, long, List)}, but only if the tip has not
+     * changed since {@link #getTipGeneration()} returned {@code tipGeneration}. A block connected in
+     * between may confirm {@code tx} or spend what it spends, which removing its transactions from
+     * the pool would not catch once {@code tx} went in after them.
+     *
+     * @return {@code STALE_TIP} if the tip changed, so {@code tx} must be resolved again against
+     *         the new one, or else as {@link #admit(Transaction, long, List)}
+     */
+    public ValidationResult admit(Transaction tx, long fee, List<byte[]> parents, long tipGeneration) {
+        return add(tx, fee, parents, true, tipGeneration);
+    }
+
+    /**
+     * @return the number of tip changes seen so far, raised by {@link #removeConfirmed} and
+     *         {@link #removeSpending}; read it before the tip that transactions are resolved against
+     */
+    public long getTipGeneration() {
+        return tipGeneration;
+    }
+
+    private ValidationResult add(Transaction tx, long fee, List<byte[]> parents, boolean refuseConflicts,
+            long generation) {
         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        Entry entry;
+        int[] locked = stripesOf(hash, tx);
+        poolLock.readLock().lock();
+        try {
+            // Tip changes hold the write lock, so none can happen until the entry is in
+            if (generation >= 0 && generation != tipGeneration)
+                return ValidationResult.STALE_TIP;
+            for (int stripe : locked)
+                stripes[stripe].lock();
+            try {
+                if (H.containsKey(hash))
+                    return ValidationResult.VALID;
+                if (parents != null)
+                    for (byte[] parent : parents)
+                        if (!H.containsKey(new ByteArrayWrapper(parent)))
+                            return ValidationResult.MISSING_INPUT;
+                // Allocated once the parents are known to be in, so they sort before it in snapshots
+                entry = new Entry(tx, fee, nextSequence.getAndIncrement());
+                if (refuseConflicts)
+                    for (UTXO utxo : entry.spends)
+                        if (utxo != null && spentBy.containsKey(utxo))
+                            return ValidationResult.DOUBLE_SPEND;
+                if (compareProducts(fee, 1000, minFeeRate, entry.size) < 0)
+                    return ValidationResult.LOW_FEE;
+
+                link(entry);
+                synchronized (entry) {
+                    rescore(entry);
+                }
+                bytes.addAndGet(entry.bytes);
+                byFeeRate.add(entry);
+                byAncestorFeeRate.add(entry);
+                for (UTXO utxo : entry.spends) {
+                    if (utxo == null)
+                        continue;
+                    ArrayList<Entry> spenders = spentBy.computeIfAbsent(utxo, u -> new ArrayList<Entry>(1));
+                    // An input repeated within the transaction is indexed once
+                    if (!spenders.contains(entry))
+                        spenders.add(entry);
+                }
+                H.put(hash, entry);
+            } finally {
+                for (int stripe : locked)
+                    stripes[stripe].unlock();
+            }
+        } finally {
+            poolLock.readLock().unlock();
+        }
+
+        if (bytes.get() > maxBytes) {
+            poolLock.writeLock().lock();
+            try {
+                while (bytes.get() > maxBytes) {
+                    // The package of a transaction and its descendants paying the least per byte
+                    DescendantScore lowest = byDescendantFeeRate.last();
+                    long rate = lowest.fee >= Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : lowest.fee * 1000 / lowest.size;
+                    if (rate > Long.MAX_VALUE - INCREMENTAL_FEE_RATE)
+                        minFeeRate = Long.MAX_VALUE;
+                    else
+                        minFeeRate = Math.max(minFeeRate, rate + INCREMENTAL_FEE_RATE);
+                    evictions.addAndGet(removeWithDescendants(lowest.entry, null));
+                }
+            } finally {
+                poolLock.writeLock().unlock();
+            }
+        }
+        return H.get(hash) == entry ? ValidationResult.VALID : ValidationResult.LOW_FEE;
     }
 
     public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        poolLock.writeLock().lock();
+        try {
+            Entry old = H.remove(new ByteArrayWrapper(txHash));
+            if (old != null)
+                unindex(old);
+            relaxMinFeeRate();
+        } finally {
+            poolLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the transactions of a newly connected block. Pooled transactions claiming an output
+     * spent by the block now conflict with it, so they are evicted together with every pooled
+     * transaction spending from them, in time proportional to the inputs of the block and the
+     * evicted transactions. Counts as a change of the tip, so set the new tip before calling it.
+     *
+     * @return the number of conflicting transactions evicted
+     */
+    public int removeConfirmed(Transaction[] txs) {
+        int evicted = 0;
+        poolLock.writeLock().lock();
+        try {
+            tipGeneration++;
+            for (Transaction tx : txs) {
+                Entry old = H.remove(new ByteArrayWrapper(tx.getHash()));
+                if (old != null)
+                    unindex(old);
+                for (int i = 0; i < tx.numInputs(); i++) {
+                    Transaction.Input input = tx.getInput(i);
+                    if (input.prevTxHash == null)
+                        continue;
+                    ArrayList<Entry> conflicts = spentBy.get(new UTXO(input.prevTxHash, input.outputIndex));
+                    while (conflicts != null && !conflicts.isEmpty())
+                        evicted += removeWithDescendants(conflicts.get(conflicts.size() - 1), null);
+                }
+            }
+            relaxMinFeeRate();
+        } finally {
+            poolLock.writeLock().unlock();
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes the pooled transactions spending outputs of {@code txs}, together with their
+     * descendants. Used when {@code txs} leave the main branch, so the removed transactions can be
+     * validated again after them. Counts as a change of the tip, like {@link #removeConfirmed}.
+     *
+     * @return the removed transactions in the order they were added
+     */
+    public ArrayList<Transaction> removeSpending(Transaction[] txs) {
+        ArrayList<Entry> removed = new ArrayList<Entry>();
+        poolLock.writeLock().lock();
+        try {
+            tipGeneration++;
+            for (Transaction tx : txs) {
+                byte[] hash = tx.getHash();
+                for (int o = 0; o < tx.numOutputs(); o++) {
+                    ArrayList<Entry> spenders = spentBy.get(new UTXO(hash, o));
+                    while (spenders != null && !spenders.isEmpty())
+                        removeWithDescendants(spenders.get(spenders.size() - 1), removed);
+                }
+            }
+            relaxMinFeeRate();
+        } finally {
+            poolLock.writeLock().unlock();
+        }
+        removed.sort(Comparator.comparingLong(entry -> entry.sequence));
+        ArrayList<Transaction> T = new ArrayList<Transaction>(removed.size());
+        for (Entry entry : removed)
+            T.add(entry.tx);
+        return T;
+    }
+
+    /** @return true if a pooled transaction claims {@code utxo} */
+    public boolean isSpent(UTXO utxo) {
+        return spentBy.containsKey(utxo);
+    }
+
+    /** @return the pooled transactions claiming {@code utxo}, more than one if they conflict */
+    public ArrayList<Transaction> getSpenders(UTXO utxo) {
+        ArrayList<Transaction> T = new ArrayList<Transaction>();
+        ReentrantLock stripe = stripes[stripeOf(utxo.hashCode())];
+        // Removals change the lists under the write lock only
+        poolLock.readLock().lock();
+        try {
+            stripe.lock();
+            try {
+                ArrayList<Entry> spenders = spentBy.get(utxo);
+                if (spenders != null)
+                    for (Entry entry : spenders)
+                        T.add(entry.tx);
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            poolLock.readLock().unlock();
+        }
+        return T;
     }
 
     public Transaction getTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Entry entry = H.get(hash);
+        return entry == null ? null : entry.tx;
+    }
+
+    /** @return the fee {@code txHash} was added with, or -1 if it is not in the pool */
+    public long getFee(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        return entry == null ? -1 : entry.fee;
     }
 
     public ArrayList<Transaction> getTransactions() {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        for (Entry entry : H.values())
+            T.add(entry.tx);
+        return T;
+    }
+
+    /**
+     * @return up to {@code n} transactions with the highest fee per byte, highest first, in
+     *         O(n + log size) without looking at the rest of the pool. The result is a consistent
+     *         snapshot that adds running meanwhile do not show up in, and are not held up by.
+     */
+    public ArrayList<Transaction> getTopTransactions(int n) {
+        ArrayList<Transaction> T = new ArrayList<Transaction>(Math.min(n, H.size()));
+        poolLock.readLock().lock();
+        try {
+            long end = nextSequence.get();
+            Iterator<Entry> it = byFeeRate.iterator();
+            while (T.size() < n && it.hasNext()) {
+                Entry entry = it.next();
+                if (inSnapshot(entry, end))
+                    T.add(entry.tx);
+            }
+        } finally {
+            poolLock.readLock().unlock();
+        }
         return T;
     }
+
+    /**
+     * @return up to {@code n} transactions for a block, parents before children, taken as packages
+     *         of a transaction with its ancestors not taken yet, highest package fee per byte first.
+     *         A high-fee child so brings in its low-fee parent. Taking a package lowers the package
+     *         totals of the descendants of its members, which are then reconsidered. Like
+     *         {@link #getTopTransactions}, this is a consistent snapshot that does not hold up adds.
+     */
+    public ArrayList<Transaction> getBlockTemplate(int n) {
+        ArrayList<Transaction> T = new ArrayList<Transaction>(Math.min(n, H.size()));
+        poolLock.readLock().lock();
+        try {
+            long end = nextSequence.get();
+            Set<Entry> done = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+            // Entries whose package did not fit; any package containing one cannot fit either
+            Set<Entry> skipped = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+            // Entries with some ancestors taken, whose totals in the pool no longer apply
+            HashMap<Entry, Candidate> modified = new HashMap<Entry, Candidate>();
+            TreeSet<Candidate> byModifiedFeeRate = new TreeSet<Candidate>(BY_CANDIDATE_FEE_RATE);
+            Iterator<Entry> it = byAncestorFeeRate.iterator();
+            Entry next = null;
+
+            while (T.size() < n) {
+                while (next == null || done.contains(next) || skipped.contains(next)
+                        || modified.containsKey(next) || !inSnapshot(next, end)) {
+                    if (!it.hasNext()) {
+                        next = null;
+                        break;
+                    }
+                    next = it.next();
+                }
+                Candidate best = byModifiedFeeRate.isEmpty() ? null : byModifiedFeeRate.first();
+                if (best != null && (done.contains(best.entry) || skipped.contains(best.entry))) {
+                    byModifiedFeeRate.pollFirst();
+                    continue;
+                }
+                if (next == null && best == null)
+                    break;
+
+                Entry chosen;
+                if (best != null && (next == null
+                        || compareProducts(best.fee, next.ancestorSize, next.ancestorFee, best.size) > 0)) {
+                    chosen = best.entry;
+                    byModifiedFeeRate.pollFirst();
+                } else {
+                    chosen = next;
+                    next = null;
+                }
+
+                ArrayList<Entry> members = new ArrayList<Entry>();
+                boolean fits = true;
+                for (Entry ancestor : ancestorsOf(chosen)) {
+                    if (skipped.contains(ancestor))
+                        fits = false;
+                    else if (!done.contains(ancestor))
+                        members.add(ancestor);
+                }
+                members.add(chosen);
+                // A package that does not fit is left out, but smaller ones after it may still fit
+                if (!fits || T.size() + members.size() > n) {
+                    skipped.add(chosen);
+                    continue;
+                }
+                members.sort(Comparator.comparingLong(member -> member.sequence));
+
+                for (Entry member : members) {
+                    T.add(member.tx);
+                    done.add(member);
+                    // Taken as an ancestor, so its own package must not be offered again
+                    Candidate taken = modified.remove(member);
+                    if (taken != null)
+                        byModifiedFeeRate.remove(taken);
+                }
+                for (Entry member : members) {
+                    for (Entry descendant : descendantsOf(member)) {
+                        if (done.contains(descendant) || !inSnapshot(descendant, end))
+                            continue;
+                        Candidate candidate = modified.get(descendant);
+                        if (candidate == null)
+                            modified.put(descendant, candidate = new Candidate(descendant));
+                        else
+                            byModifiedFeeRate.remove(candidate);
+                        candidate.fee -= member.fee;
+                        candidate.size -= member.size;
+                        byModifiedFeeRate.add(candidate);
+                    }
+                }
+            }
+        } finally {
+            poolLock.readLock().unlock();
+        }
+        return T;
+    }
+
+    /** @return the fee of {@code txHash} and its pooled ancestors, or -1 if it is not in the pool */
+    public long getAncestorFee(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        if (entry == null)
+            return -1;
+        synchronized (entry) {
+            return entry.ancestorFee;
+        }
+    }
+
+    /** @return the size of {@code txHash} and its pooled ancestors, or -1 if it is not in the pool */
+    public long getAncestorSize(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        if (entry == null)
+            return -1;
+        synchronized (entry) {
+            return entry.ancestorSize;
+        }
+    }
+
+    /** @return the number of {@code txHash} and its pooled ancestors, or 0 if it is not in the pool */
+    public int getAncestorCount(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        if (entry == null)
+            return 0;
+        synchronized (entry) {
+            return entry.ancestorCount;
+        }
+    }
+
+    /** @return the fee of {@code txHash} and its pooled descendants, or -1 if it is not in the pool */
+    public long getDescendantFee(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        if (entry == null)
+            return -1;
+        synchronized (entry) {
+            return entry.descendantFee;
+        }
+    }
+
+    /** @return the size of {@code txHash} and its pooled descendants, or -1 if it is not in the pool */
+    public long getDescendantSize(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        if (entry == null)
+            return -1;
+        synchronized (entry) {
+            return entry.descendantSize;
+        }
+    }
+
+    /** @return the number of {@code txHash} and its pooled descendants, or 0 if it is not in the pool */
+    public int getDescendantCount(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        if (entry == null)
+            return 0;
+        synchronized (entry) {
+            return entry.descendantCount;
+        }
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    /** @return the estimated heap bytes of the pooled transactions */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the fee per 1000 bytes a transaction must pay to be added. It rises with every
+     *         eviction and drops back to zero once the pool is below half of its budget.
+     */
+    public long getMinFeeRate() {
+        return minFeeRate;
+    }
+
+    /** @return the number of transactions evicted to stay within the memory budget */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Removes {@code entry} and the pooled transactions spending its outputs, transitively, adding
+     * them to {@code removed} if it is not null. The caller holds the write lock.
+     */
+    private int removeWithDescendants(Entry entry, List<Entry> removed) {
+        int count = 0;
+        ArrayList<Entry> todo = new ArrayList<Entry>();
+        todo.add(entry);
+        while (!todo.isEmpty()) {
+            Entry next = todo.remove(todo.size() - 1);
+            // A child spending several outputs of a removed transaction is found more than once
+            if (!H.remove(new ByteArrayWrapper(next.tx.getHash()), next))
+                continue;
+            unindex(next);
+            count++;
+            if (removed != null)
+                removed.add(next);
+            byte[] hash = next.tx.getHash();
+            for (int o = 0; o < next.tx.numOutputs(); o++) {
+                ArrayList<Entry> children = spentBy.get(new UTXO(hash, o));
+                if (children != null)
+                    todo.addAll(children);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Links {@code entry}, which is about to be pooled, to its pooled parents, and adds it to the
+     * totals of its ancestors and them to its own. The caller holds the read lock and the stripes
+     * of {@code entry}.
+     */
+    private void link(Entry entry) {
+        for (UTXO utxo : entry.spends) {
+            if (utxo == null)
+                continue;
+            Entry parent = H.get(new ByteArrayWrapper(utxo.getTxHash()));
+            if (parent != null && !entry.parents.contains(parent))
+                entry.parents.add(parent);
+        }
+        for (Entry ancestor : ancestorsOf(entry)) {
+            entry.ancestorFee += ancestor.fee;
+            entry.ancestorSize += ancestor.size;
+            entry.ancestorCount++;
+            // Other adds may update the same ancestor at once
+            synchronized (ancestor) {
+                ancestor.descendantFee += entry.fee;
+                ancestor.descendantSize += entry.size;
+                ancestor.descendantCount++;
+                rescore(ancestor);
+            }
+        }
+        for (Entry parent : entry.parents)
+            synchronized (parent) {
+                parent.children.add(entry);
+            }
+    }
+
+    /** @return the pooled ancestors of {@code entry}, without it */
+    private static ArrayList<Entry> ancestorsOf(Entry entry) {
+        ArrayList<Entry> ancestors = new ArrayList<Entry>(entry.parents);
+        Set<Entry> seen = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+        seen.addAll(ancestors);
+        for (int i = 0; i < ancestors.size(); i++)
+            for (Entry parent : ancestors.get(i).parents)
+                if (seen.add(parent))
+                    ancestors.add(parent);
+        return ancestors;
+    }
+
+    /** @return the pooled descendants of {@code entry}, without it */
+    private static ArrayList<Entry> descendantsOf(Entry entry) {
+        ArrayList<Entry> descendants = new ArrayList<Entry>();
+        Set<Entry> seen = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+        Entry next = entry;
+        int i = 0;
+        while (next != null) {
+            synchronized (next) {
+                for (Entry child : next.children)
+                    if (seen.add(child))
+                        descendants.add(child);
+            }
+            next = i < descendants.size() ? descendants.get(i++) : null;
+        }
+        return descendants;
+    }
+
+    /**
+     * @return true if {@code entry} was completely added before the snapshot ending at {@code end}.
+     *         An entry is complete once it is in {@code H}; a later one may be a child of one that
+     *         is not.
+     */
+    private boolean inSnapshot(Entry entry, long end) {
+        return entry.sequence < end && H.get(new ByteArrayWrapper(entry.tx.getHash())) == entry;
+    }
+
+    /** Re-sorts {@code entry} by its current descendant totals; the caller holds its lock */
+    private void rescore(Entry entry) {
+        if (entry.descendantScore != null)
+            byDescendantFeeRate.remove(entry.descendantScore);
+        entry.descendantScore = new DescendantScore(entry);
+        byDescendantFeeRate.add(entry.descendantScore);
+    }
+
+    /** Drops the minimum fee rate once transactions leaving the pool bring it below half its budget */
+    private void relaxMinFeeRate() {
+        if (bytes.get() < maxBytes / 2)
+            minFeeRate = 0;
+    }
+
+    /**
+     * Removes {@code entry}, which was just taken out of {@code H}, from the indexes and budget. The
+     * caller holds the write lock.
+     */
+    private void unindex(Entry entry) {
+        bytes.addAndGet(-entry.bytes);
+        byFeeRate.remove(entry);
+        byAncestorFeeRate.remove(entry);
+        synchronized (entry) {
+            byDescendantFeeRate.remove(entry.descendantScore);
+        }
+        // The getters take no pool lock, only the lock of the entry they read
+        for (Entry ancestor : ancestorsOf(entry))
+            synchronized (ancestor) {
+                ancestor.descendantFee -= entry.fee;
+                ancestor.descendantSize -= entry.size;
+                ancestor.descendantCount--;
+                rescore(ancestor);
+            }
+        for (Entry descendant : descendantsOf(entry)) {
+            // Re-sorted, as its key changes
+            byAncestorFeeRate.remove(descendant);
+            synchronized (descendant) {
+                descendant.ancestorFee -= entry.fee;
+                descendant.ancestorSize -= entry.size;
+                descendant.ancestorCount--;
+            }
+            byAncestorFeeRate.add(descendant);
+        }
+        for (Entry parent : entry.parents)
+            synchronized (parent) {
+                parent.children.remove(entry);
+            }
+        for (Entry child : entry.children)
+            child.parents.remove(entry);
+        for (UTXO utxo : entry.spends) {
+            if (utxo == null)
+                continue;
+            ArrayList<Entry> spenders = spentBy.get(utxo);
+            if (spenders == null)
+                continue;
+            spenders.remove(entry);
+            if (spenders.isEmpty())
+                spentBy.remove(utxo);
+        }
+    }
+
+    /** @return the distinct stripes of {@code hash} and of the outputs {@code tx} claims, ascending */
+    private static int[] stripesOf(ByteArrayWrapper hash, Transaction tx) {
+        int[] locked = new int[tx.numInputs() + 1];
+        locked[0] = stripeOf(hash.hashCode());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            locked[i + 1] = input.prevTxHash == null ? locked[0]
+                    : stripeOf(new UTXO(input.prevTxHash, input.outputIndex).hashCode());
+        }
+        // Taking stripes in ascending order keeps two adds from waiting on each other
+        Arrays.sort(locked);
+        int distinct = 0;
+        for (int i = 0; i < locked.length; i++)
+            if (i == 0 || locked[i] != locked[i - 1])
+                locked[distinct++] = locked[i];
+        return Arrays.copyOf(locked, distinct);
+    }
+
+    private static int stripeOf(int hashCode) {
+        return (hashCode ^ (hashCode >>> 16)) & (STRIPES - 1);
+    }
+
+    /** @return the sign of {@code a * b - c * d}, computed without overflow */
+    private static int compareProducts(long a, long b, long c, long d) {
+        long high = Math.multiplyHigh(a, b);
+        long otherHigh = Math.multiplyHigh(c, d);
+        if (high != otherHigh)
+            return Long.compare(high, otherHigh);
+        return Long.compareUnsigned(a * b, c * d);
+    }
 }
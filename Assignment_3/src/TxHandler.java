@@ -1,16 +1,117 @@
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class TxHandler {
 
-    private UTXOPool pool;
+    /** Below this many signature checks a fork-join task verifies its range itself */
+    private static final int VERIFY_THRESHOLD = 4;
+
+    /** The pool passed in, with the changes of accepted transactions kept in an overlay */
+    private UTXOView pool;
+
+    /** Pool used to verify all input signatures of a batch in parallel, or null to verify serially */
+    private ForkJoinPool verifyPool;
+
+    /** Cache of successful signature checks shared with other handlers, or null */
+    private SignatureCache signatureCache;
+
+    /** Rejections of {@code isValidTx}, by reason */
+    private RejectionCounters rejections;
+
+    /** Signature checks precomputed for the batch currently handled by {@code handleTxs} */
+    private IdentityHashMap<Transaction, SignatureCheck[]> verified;
+
+    /** One input signature checked against the address of the output it claims */
+    static class SignatureCheck {
+        private final Transaction.Output origin;
+        private final byte[] message;
+        private final byte[] signature;
+        private boolean valid;
+
+        SignatureCheck(Transaction.Output origin, byte[] message, byte[] signature) {
+            this.origin = origin;
+            this.message = message;
+            this.signature = signature;
+        }
+
+        /** @return true if the signature was verified successfully by {@code verifyAll} */
+        boolean isValid() {
+            return valid;
+        }
+    }
+
+    /** Verifies a range of signature checks, splitting it in halves across the fork-join pool */
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SignatureCache cache;
+        private final SignatureCheck[] checks;
+        private final int from;
+        private final int to;
+
+        private VerifyTask(SignatureCache cache, SignatureCheck[] checks, int from, int to) {
+            this.cache = cache;
+            this.checks = checks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= VERIFY_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    SignatureCheck check = checks[i];
+                    check.valid = verifySignature(cache, check.origin.address, check.message, check.signature);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VerifyTask(cache, checks, from, mid), new VerifyTask(cache, checks, mid, to));
+            }
+        }
+    }
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
-     * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
-     * constructor.
+     * {@code utxoPool}. The pool is not copied; accepted transactions are recorded in a
+     * {@link UTXOView} over it, so later changes to {@code utxoPool} are not seen.
      */
     public TxHandler(UTXOPool utxoPool) {
-        this.pool = new UTXOPool(utxoPool);
+        this(utxoPool, null);
+    }
+
+    /**
+     * Creates a handler like {@link #TxHandler(UTXOPool)} that verifies the input signatures of each
+     * batch passed to {@code handleTxs} in parallel on {@code verifyPool}. UTXO lookups and
+     * double-spend checks still run in array order, so the accepted transactions are the same as
+     * with serial verification.
+     */
+    public TxHandler(UTXOPool utxoPool, ForkJoinPool verifyPool) {
+        this(utxoPool, verifyPool, null);
+    }
+
+    /**
+     * Creates a handler like {@link #TxHandler(UTXOPool, ForkJoinPool)} that consults
+     * {@code signatureCache} before verifying a signature and records every successful check in it.
+     */
+    public TxHandler(UTXOPool utxoPool, ForkJoinPool verifyPool, SignatureCache signatureCache) {
+        this(utxoPool, verifyPool, signatureCache, new RejectionCounters());
+    }
+
+    /**
+     * Creates a handler like {@link #TxHandler(UTXOPool, ForkJoinPool, SignatureCache)} that counts
+     * every rejected transaction in {@code rejections}, which may be shared with other handlers.
+     */
+    public TxHandler(UTXOPool utxoPool, ForkJoinPool verifyPool, SignatureCache signatureCache,
+            RejectionCounters rejections) {
+        this.pool = new UTXOView(utxoPool);
+        this.verifyPool = verifyPool;
+        this.signatureCache = signatureCache;
+        this.rejections = rejections;
     }
 
     /**
@@ -23,9 +124,23 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
+        return validate(tx) == ValidationResult.VALID;
+    }
+
+    /**
+     * Checks {@code tx} like {@link #isValidTx} and counts a rejection.
+     *
+     * @return {@code VALID}, or the first reason why {@code tx} is not valid
+     */
+    public ValidationResult validate(Transaction tx) {
+        return rejections.record(check(tx));
+    }
+
+    private ValidationResult check(Transaction tx) {
 
-        UTXOPool currentTransactionPool = new UTXOPool();
-        double transactionFee = 0.0;
+        HashSet<UTXO> claimed = new HashSet<>();
+        long inputSum = 0;
+        long outputSum = 0;
 
         // Check inputs
         for (int i = 0; i < tx.numInputs(); i++) {
@@ -34,29 +149,27 @@ public class TxHandler {
 
             // (1) all outputs claimed by {@code tx} are in the current UTXO pool
             UTXO currentUTXO = new UTXO(currentTxInput.prevTxHash, currentTxInput.outputIndex);
-            if (!this.pool.contains(currentUTXO)) {
-                System.out.println("Claimed output by transaction is not in current UTXO pool");
-                return false;
-            }
+            if (!this.pool.contains(currentUTXO))
+                return ValidationResult.MISSING_INPUT;
 
             // (2) the signatures on each input of {@code tx} are valid
             Transaction.Output origin = this.pool.getTxOutput(currentUTXO);
             assert origin != null;
 
-            if (!Crypto.verifySignature(origin.address, tx.getRawDataToSign(i), currentTxInput.signature)) {
-                System.out.println("Signature is invalid");
-                return false;
-            }
+            if (!verifySignature(tx, i, origin))
+                return ValidationResult.BAD_SIGNATURE;
 
             // (3) no UTXO is claimed multiple times by {@code tx}
-            if (currentTransactionPool.contains(currentUTXO)) {
-                System.out.println("UTXO is claimed multiple times");
-                return false;
+            if (claimed.contains(currentUTXO)) {
+                return ValidationResult.DOUBLE_SPEND;
             } else {
-                currentTransactionPool.addUTXO(currentUTXO, null);
+                claimed.add(new UTXO(currentTxInput.prevTxHash, currentTxInput.outputIndex));
             }
 
-            transactionFee += origin.value;
+            // Input values are non-negative, so only the sum can overflow
+            if (inputSum > Long.MAX_VALUE - origin.value)
+                return ValidationResult.VALUE_OVERFLOW;
+            inputSum += origin.value;
 
         }
 
@@ -65,48 +178,54 @@ public class TxHandler {
 
             // (4) all of {@code tx}s output values are non-negative
             Transaction.Output currentTxInput = tx.getOutput(j);
-            if (currentTxInput.value < 0) {
-                System.out.println("Negative output value");
-                return false;
-            }
+            if (currentTxInput.value < 0)
+                return ValidationResult.NEGATIVE_OUTPUT;
 
-            transactionFee -= tx.getOutput(j).value;
+            if (outputSum > Long.MAX_VALUE - currentTxInput.value)
+                return ValidationResult.VALUE_OVERFLOW;
+            outputSum += currentTxInput.value;
 
         }
 
         // (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
         // values; and false otherwise.
-        if (transactionFee < 0) {
-            System.out.println("Outputs higher than inputs");
-            return false;
-        }
+        if (inputSum < outputSum)
+            return ValidationResult.FEE_UNDERFLOW;
 
-        return true;
+        return ValidationResult.VALID;
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * updating the current UTXO pool as appropriate. A transaction spending an output of another
+     * transaction of the array is checked after it, so chains are accepted in any order.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         assert possibleTxs != null;
         ArrayList<Transaction> validTxs = new ArrayList<>();
 
-        for (int x = 0; x < possibleTxs.length; x++) {
-            Transaction currentTx = possibleTxs[x];
+        HashMap<ByteArrayWrapper, Integer> batch = new HashMap<>();
+        for (int x = 0; x < possibleTxs.length; x++)
+            if (possibleTxs[x].getHash() != null)
+                batch.putIfAbsent(new ByteArrayWrapper(possibleTxs[x].getHash()), x);
+
+        int[] order = spendOrder(possibleTxs, batch);
+        if (verifyPool != null)
+            verified = verifyInParallel(possibleTxs, order, batch);
+
+        for (int x = 0; x < order.length; x++) {
+            Transaction currentTx = possibleTxs[order[x]];
 
             // Check each transaction
-            if (!isValidTx(currentTx)) {
-                System.out.println("Transaction not valid");
+            if (!isValidTx(currentTx))
                 continue;
-            }
 
             // Add to accepted transaction
             validTxs.add(currentTx);
 
             // Update UTXO pool: Remove used UTXOs
-            for (int i = 0; i < currentTx.getInputs().size(); i++) {
+            for (int i = 0; i < currentTx.numInputs(); i++) {
                 Transaction.Input currentTxInput = currentTx.getInput(i);
                 UTXO oldUTXO = new UTXO(currentTxInput.prevTxHash, currentTxInput.outputIndex);
 
@@ -114,7 +233,7 @@ public class TxHandler {
             }
 
             // Update UTXO pool: Add new UTXOs
-            for(int o = 0; o < currentTx.getOutputs().size(); o++) {
+            for(int o = 0; o < currentTx.numOutputs(); o++) {
                 Transaction.Output currentTxOutput = currentTx.getOutput(o);
                 UTXO newUTXO = new UTXO(currentTx.getHash(), o);
 
@@ -123,14 +242,158 @@ public class TxHandler {
 
         }
 
+        verified = null;
+
         // Return array of accepted transactions
         Transaction[] finalTxs = new Transaction[validTxs.size()];
         return validTxs.toArray(finalTxs);
 
     }
 
+    /** Checks the signature of input {@code index} of {@code tx} against the claimed {@code origin} */
+    private boolean verifySignature(Transaction tx, int index, Transaction.Output origin) {
+        Transaction.Input input = tx.getInput(index);
+        if (verified != null) {
+            SignatureCheck[] checks = verified.get(tx);
+            // Only reuse the result if it was computed for the output now being claimed
+            if (checks != null && checks[index] != null && checks[index].origin == origin)
+                return checks[index].valid;
+        }
+        return verifySignature(signatureCache, origin.address, tx.getRawDataToSign(index), input.getSignature());
+    }
+
+    private static boolean verifySignature(SignatureCache cache, PublicKey pubKey,
+            byte[] message, byte[] signature) {
+        if (cache != null)
+            return cache.verifySignature(pubKey, message, signature);
+        return Crypto.verifySignature(pubKey, message, signature);
+    }
+
+    /**
+     * @return the indices of {@code txs}, ordered so that each transaction comes after the
+     *         transactions of the batch it spends from and otherwise in array order. A depth-first
+     *         walk over the spend graph, so O(n + inputs).
+     */
+    static int[] spendOrder(Transaction[] txs, HashMap<ByteArrayWrapper, Integer> batch) {
+        int[] order = new int[txs.length];
+        int ordered = 0;
+        // 0 = not visited, 1 = waiting for its parents, 2 = ordered
+        byte[] state = new byte[txs.length];
+        int[] stack = new int[txs.length];
+        int[] nextInput = new int[txs.length];
+
+        for (int x = 0; x < txs.length; x++) {
+            if (state[x] != 0)
+                continue;
+            int depth = 0;
+            stack[depth++] = x;
+            state[x] = 1;
+            nextInput[x] = 0;
+            while (depth > 0) {
+                int t = stack[depth - 1];
+                if (nextInput[t] < txs[t].numInputs()) {
+                    byte[] prevTxHash = txs[t].getInput(nextInput[t]++).prevTxHash;
+                    Integer parent = prevTxHash == null ? null : batch.get(new ByteArrayWrapper(prevTxHash));
+                    // Parents already waiting only occur in cycles, which cannot all be valid
+                    if (parent != null && state[parent] == 0) {
+                        state[parent] = 1;
+                        nextInput[parent] = 0;
+                        stack[depth++] = parent;
+                    }
+                } else {
+                    depth--;
+                    state[t] = 2;
+                    order[ordered++] = t;
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Verifies, in parallel, the input signatures of the transactions the serial pass would accept
+     * if every signature were valid. Transactions are checked in {@code order}, which is the order
+     * of the serial pass. Every check except the signatures is repeated: inputs must be in the pool
+     * or be outputs of an earlier such transaction, must not be claimed twice, and the values must
+     * add up. Inputs of conflicting, duplicate or otherwise invalid transactions are never verified,
+     * so a batch cannot make this pass do more RSA work than the serial one.
+     */
+    private IdentityHashMap<Transaction, SignatureCheck[]> verifyInParallel(Transaction[] txs, int[] order,
+            HashMap<ByteArrayWrapper, Integer> batch) {
+        IdentityHashMap<Transaction, SignatureCheck[]> checks = new IdentityHashMap<>();
+        ArrayList<SignatureCheck> all = new ArrayList<>();
+        // Outputs claimed by the transactions expected to be accepted so far
+        HashSet<UTXO> claimed = new HashSet<>();
+        boolean[] expected = new boolean[txs.length];
+        for (int x : order) {
+            Transaction tx = txs[x];
+            SignatureCheck[] txChecks = new SignatureCheck[tx.numInputs()];
+            HashSet<UTXO> txClaims = new HashSet<>();
+            long inputSum = 0;
+            boolean valid = true;
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                if (input.prevTxHash == null)
+                    break;
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                if (claimed.contains(utxo) || !txClaims.add(utxo))
+                    break;
+                Transaction.Output origin = this.pool.getTxOutput(utxo);
+                if (origin == null && input.outputIndex >= 0) {
+                    Integer parent = batch.get(new ByteArrayWrapper(input.prevTxHash));
+                    if (parent != null && expected[parent])
+                        origin = txs[parent].getOutput(input.outputIndex);
+                }
+                if (origin == null || inputSum > Long.MAX_VALUE - origin.value)
+                    break;
+                inputSum += origin.value;
+                txChecks[i] = new SignatureCheck(origin, tx.getRawDataToSign(i), input.getSignature());
+            }
+            for (SignatureCheck check : txChecks)
+                if (check == null)
+                    valid = false;
+            long outputSum = 0;
+            for (int o = 0; o < tx.numOutputs() && valid; o++) {
+                long value = tx.getOutput(o).value;
+                if (value < 0 || outputSum > Long.MAX_VALUE - value)
+                    valid = false;
+                else
+                    outputSum += value;
+            }
+            if (!valid || inputSum < outputSum)
+                continue;
+
+            expected[x] = true;
+            claimed.addAll(txClaims);
+            checks.put(tx, txChecks);
+            for (SignatureCheck check : txChecks)
+                all.add(check);
+        }
+
+        verifyAll(verifyPool, signatureCache, all.toArray(new SignatureCheck[0]));
+        return checks;
+    }
+
+    /**
+     * Verifies every check, on {@code verifyPool} if it is not null and otherwise on the calling
+     * thread, consulting and filling {@code cache} if it is not null
+     */
+    static void verifyAll(ForkJoinPool verifyPool, SignatureCache cache, SignatureCheck[] checks) {
+        if (verifyPool != null) {
+            verifyPool.invoke(new VerifyTask(cache, checks, 0, checks.length));
+        } else {
+            for (SignatureCheck check : checks)
+                check.valid = verifySignature(cache, check.origin.address, check.message, check.signature);
+        }
+    }
+
+    /** @return a new pool holding the given pool with every accepted transaction applied */
     public UTXOPool getUTXOPool() {
-        return pool;
+        return pool.commit();
+    }
+
+    public RejectionCounters getRejectionCounters() {
+        return rejections;
     }
 
 }
@@ -2,23 +2,54 @@ import java.util.Arrays;
 
 public class UTXO implements Comparable<UTXO> {
 
-    /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    /**
+     * Hash of the transaction from which this UTXO originates, packed big-endian into four longs
+     * (zero padded if shorter than 32 bytes)
+     */
+    private long h0, h1, h2, h3;
+
+    /** Length of the transaction hash; hashes longer than 32 bytes are also kept in {@code fullHash} */
+    private int length;
+    private byte[] fullHash;
 
     /** Index of the corresponding output in said transaction */
     private int index;
 
+    /** Hash code, computed once */
+    private int hash;
+
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        this.length = txHash.length;
+        this.h0 = pack(txHash, 0);
+        this.h1 = pack(txHash, 8);
+        this.h2 = pack(txHash, 16);
+        this.h3 = pack(txHash, 24);
+        this.fullHash = txHash.length > 32 ? txHash.clone() : null;
         this.index = index;
+        long mixed = (h0 * 0x9E3779B97F4A7C15L) ^ (h1 * 0xC2B2AE3D27D4EB4FL) ^ (h2 * 0x165667B19E3779F9L)
+                ^ (h3 * 0x27D4EB2F165667C5L) ^ length;
+        this.hash = (int) (mixed ^ (mixed >>> 32)) * 31 + index;
+    }
+
+    private static long pack(byte[] b, int from) {
+        long v = 0;
+        for (int i = from; i < from + 8; i++)
+            v = (v << 8) | (i < b.length ? b[i] & 0xff : 0);
+        return v;
     }
 
     /** @return the transaction hash of this UTXO */
     public byte[] getTxHash() {
+        if (fullHash != null)
+            return fullHash.clone();
+        byte[] txHash = new byte[length];
+        long[] words = { h0, h1, h2, h3 };
+        for (int i = 0; i < length; i++)
+            txHash[i] = (byte) (words[i / 8] >>> (56 - 8 * (i % 8)));
         return txHash;
     }
 
@@ -40,15 +71,12 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
+        // Single branch for the common case of hashes up to 32 bytes
+        long diff = (h0 ^ utxo.h0) | (h1 ^ utxo.h1) | (h2 ^ utxo.h2) | (h3 ^ utxo.h3)
+                | (index ^ utxo.index) | (length ^ utxo.length);
+        if (diff != 0)
             return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return fullHash == null || Arrays.equals(fullHash, utxo.fullHash);
     }
 
     /**
@@ -56,36 +84,35 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
-        hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
         return hash;
     }
 
     /** Compares this UTXO to the one specified by {@code utxo} */
     public int compareTo(UTXO utxo) {
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (in > index)
-            return -1;
-        else if (in < index)
-            return 1;
-        else {
-            int len1 = txHash.length;
-            int len2 = hash.length;
-            if (len2 > len1)
-                return -1;
-            else if (len2 < len1)
-                return 1;
-            else {
-                for (int i = 0; i < len1; i++) {
-                    if (hash[i] > txHash[i])
-                        return -1;
-                    else if (hash[i] < txHash[i])
-                        return 1;
-                }
-                return 0;
-            }
+        if (index != utxo.index)
+            return index < utxo.index ? -1 : 1;
+        if (length != utxo.length)
+            return length < utxo.length ? -1 : 1;
+        int c = compareSignedBytes(h0, utxo.h0);
+        if (c == 0)
+            c = compareSignedBytes(h1, utxo.h1);
+        if (c == 0)
+            c = compareSignedBytes(h2, utxo.h2);
+        if (c == 0)
+            c = compareSignedBytes(h3, utxo.h3);
+        if (c == 0 && fullHash != null) {
+            for (int i = 32; i < length && c == 0; i++)
+                c = Byte.compare(fullHash[i], utxo.fullHash[i]);
         }
+        return c;
+    }
+
+    /** Compares the first differing byte of two packed words as signed bytes, like the byte arrays */
+    private static int compareSignedBytes(long a, long b) {
+        long x = a ^ b;
+        if (x == 0)
+            return 0;
+        int shift = 56 - (Long.numberOfLeadingZeros(x) & ~7);
+        return Byte.compare((byte) (a >>> shift), (byte) (b >>> shift));
     }
 }
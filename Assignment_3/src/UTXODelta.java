@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+
+/**
+ * Undo record of the changes a block made to the UTXO pool of its parent. Every add and remove is
+ * logged together with the output it replaced, so the block can be applied to its parent's pool
+ * and rolled back from its own pool exactly, even if an output is created twice.
+ */
+public class UTXODelta {
+
+    private ArrayList<UTXO> utxos;
+    /** output mapped to the UTXO before the change, or null if it was not in the pool */
+    private ArrayList<Transaction.Output> before;
+    private ArrayList<Boolean> hadBefore;
+    /** output mapped to the UTXO after the change, or null if it was removed */
+    private ArrayList<Transaction.Output> after;
+    private ArrayList<Boolean> hasAfter;
+
+    public UTXODelta() {
+        utxos = new ArrayList<UTXO>();
+        before = new ArrayList<Transaction.Output>();
+        hadBefore = new ArrayList<Boolean>();
+        after = new ArrayList<Transaction.Output>();
+        hasAfter = new ArrayList<Boolean>();
+    }
+
+    /** Adds {@code utxo} to {@code pool} and records the change */
+    public void addUTXO(UTXOPool pool, UTXO utxo, Transaction.Output txOut) {
+        record(pool, utxo, txOut, true);
+        pool.addUTXO(utxo, txOut);
+    }
+
+    /** Removes {@code utxo} from {@code pool} and records the spent output */
+    public void removeUTXO(UTXOPool pool, UTXO utxo) {
+        record(pool, utxo, null, false);
+        pool.removeUTXO(utxo);
+    }
+
+    /** Replays the recorded changes on {@code pool}, which must be the parent block's pool */
+    public void apply(UTXOPool pool) {
+        for (int i = 0; i < utxos.size(); i++) {
+            if (hasAfter.get(i))
+                pool.addUTXO(utxos.get(i), after.get(i));
+            else
+                pool.removeUTXO(utxos.get(i));
+        }
+    }
+
+    /** Reverts the recorded changes on {@code pool}, which must be this block's pool */
+    public void undo(UTXOPool pool) {
+        for (int i = utxos.size() - 1; i >= 0; i--) {
+            if (hadBefore.get(i))
+                pool.addUTXO(utxos.get(i), before.get(i));
+            else
+                pool.removeUTXO(utxos.get(i));
+        }
+    }
+
+    /** @return the number of recorded changes */
+    public int size() {
+        return utxos.size();
+    }
+
+    private void record(UTXOPool pool, UTXO utxo, Transaction.Output txOut, boolean added) {
+        utxos.add(utxo);
+        hadBefore.add(pool.contains(utxo));
+        before.add(pool.getTxOutput(utxo));
+        hasAfter.add(added);
+        after.add(txOut);
+    }
+}
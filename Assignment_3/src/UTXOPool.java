@@ -1,32 +1,31 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
 
 public class UTXOPool {
 
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * The current collection of UTXOs, with each one mapped to its corresponding transaction output.
+     * The map is persistent, so copies of a pool share it until one of them changes.
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private PersistentHashMap<UTXO, Transaction.Output> H;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = PersistentHashMap.empty();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new UTXOPool that is a copy of {@code uPool}, in O(1) */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H;
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        H = H.put(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        H = H.remove(utxo);
     }
 
     /**
@@ -44,11 +43,8 @@ public class UTXOPool {
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(H.size());
+        H.forEach((ut, txOut) -> allUTXO.add(ut));
         return allUTXO;
     }
 }
@@ -0,0 +1,70 @@
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Layered view of a UTXO pool: a read-only base pool plus an overlay of the outputs spent and
+ * created since. Writes only touch the overlay, so validating a batch costs in proportion to the
+ * batch, and the changes are either committed into a new pool or discarded.
+ */
+public class UTXOView {
+
+    private final UTXOPool base;
+    private final HashMap<UTXO, Transaction.Output> created;
+    /** UTXOs removed from the base or from {@code created}; entries of {@code created} win */
+    private final HashSet<UTXO> spent;
+
+    /** Creates a view over a snapshot of {@code base}; later changes to {@code base} are not seen */
+    public UTXOView(UTXOPool base) {
+        this.base = new UTXOPool(base);
+        created = new HashMap<UTXO, Transaction.Output>();
+        spent = new HashSet<UTXO>();
+    }
+
+    /** Adds a mapping from {@code utxo}, which must not be reused by the caller, to {@code txOut} */
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        created.put(utxo, txOut);
+    }
+
+    /** Removes {@code utxo}, which must not be reused by the caller, from the view */
+    public void removeUTXO(UTXO utxo) {
+        created.remove(utxo);
+        spent.add(utxo);
+    }
+
+    /** @return the output of {@code utxo}, or null if it is not in the view */
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        Transaction.Output txOut = created.get(utxo);
+        if (txOut != null || created.containsKey(utxo))
+            return txOut;
+        if (spent.contains(utxo))
+            return null;
+        return base.getTxOutput(utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        if (created.containsKey(utxo))
+            return true;
+        return !spent.contains(utxo) && base.contains(utxo);
+    }
+
+    /** @return a new pool holding the base with the overlay applied; the view stays unchanged */
+    public UTXOPool commit() {
+        UTXOPool pool = new UTXOPool(base);
+        for (UTXO utxo : spent)
+            pool.removeUTXO(utxo);
+        for (UTXO utxo : created.keySet())
+            pool.addUTXO(utxo, created.get(utxo));
+        return pool;
+    }
+
+    /** Drops every change, leaving the view equal to its base */
+    public void discard() {
+        created.clear();
+        spent.clear();
+    }
+
+    /** @return the number of spent and created entries in the overlay */
+    public int size() {
+        return created.size() + spent.size();
+    }
+}
@@ -0,0 +1,34 @@
+/** Outcome of validating a transaction or a block, with the reason if it was rejected */
+public enum ValidationResult {
+    /** the transaction or block was accepted */
+    VALID,
+    /**
+     * the transaction or block is not finalized, or the transaction has no inputs or lacks an input
+     * hash or signature
+     */
+    MALFORMED,
+    /** an input claims an output that is not in the UTXO pool */
+    MISSING_INPUT,
+    /** an input signature does not verify under the address of the claimed output */
+    BAD_SIGNATURE,
+    /** an output is claimed more than once */
+    DOUBLE_SPEND,
+    /** an output value is negative */
+    NEGATIVE_OUTPUT,
+    /** the input or output values do not fit in a long */
+    VALUE_OVERFLOW,
+    /** the output values add up to more than the input values */
+    FEE_UNDERFLOW,
+    /** the fee per byte is below the minimum of the transaction pool */
+    LOW_FEE,
+    /** the tip changed while the transaction was validated, so it must be validated again */
+    STALE_TIP,
+    /** a block without a previous block, which only the genesis block may be */
+    GENESIS_BLOCK,
+    /** the previous block is not in the chain */
+    UNKNOWN_PARENT,
+    /** the block, or where its branch leaves the main branch, is too far below the maximum height */
+    BAD_HEIGHT,
+    /** the block contains a transaction that is not valid */
+    INVALID_TRANSACTION
+}
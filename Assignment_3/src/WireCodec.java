@@ -0,0 +1,489 @@
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+
+/**
+ * Versioned, self-delimiting binary format for transactions and blocks, for relay and storage.
+ * Unlike {@code getRawTx}, which only feeds the hash, it can be decoded again.
+ *
+ * <pre>
+ * transaction: varint length, then
+ *     byte version, byte flags (1 = coinbase), bytes hash,
+ *     varint #inputs  of (nullable bytes prevTxHash, int32 outputIndex, nullable bytes signature),
+ *     varint #outputs of (int64 value, bytes exponent, bytes modulus)
+ * block: varint length, then
+ *     byte version, nullable bytes prevBlockHash, nullable bytes hash,
+ *     transaction coinbase, varint #transactions of transaction
+ * bytes: varint length and the bytes; nullable bytes: varint length + 1 (0 for null) and the bytes
+ * </pre>
+ *
+ * Integers are big-endian, varints are unsigned LEB128. {@link TxView} and {@link BlockView} read
+ * fields in place from a {@code ByteBuffer} without building the object graph.
+ */
+public class WireCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final byte COINBASE_FLAG = 1;
+
+    private WireCodec() {
+    }
+
+    /** @return the encoding of the finalized {@code tx} */
+    public static byte[] encode(Transaction tx) {
+        ByteBuffer buf = ByteBuffer.allocate(encodedSize(tx));
+        encode(tx, buf);
+        return buf.array();
+    }
+
+    /** @return the number of bytes {@code encode} writes for {@code tx}, length prefix included */
+    public static int encodedSize(Transaction tx) {
+        int body = txBodySize(tx);
+        return varintSize(body) + body;
+    }
+
+    /** Writes {@code tx} at the position of {@code buf} and advances it */
+    public static void encode(Transaction tx, ByteBuffer buf) {
+        if (tx.getHash() == null)
+            throw new IllegalArgumentException("transaction is not finalized");
+        putVarint(buf, txBodySize(tx));
+        buf.put(VERSION);
+        buf.put(tx.isCoinbase() ? COINBASE_FLAG : 0);
+        putBytes(buf, tx.getHash());
+        putVarint(buf, tx.numInputs());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            putNullableBytes(buf, in.prevTxHash);
+            buf.putInt(in.outputIndex);
+            putNullableBytes(buf, in.getSignature());
+        }
+        putVarint(buf, tx.numOutputs());
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            Transaction.Output op = tx.getOutput(i);
+            EncodedKey key = op.getEncodedAddress();
+            int exponent = key.getExponentLength();
+            buf.putLong(op.value);
+            putVarint(buf, exponent);
+            buf.put(key.getEncoding(), 0, exponent);
+            putVarint(buf, key.size() - exponent);
+            buf.put(key.getEncoding(), exponent, key.size() - exponent);
+        }
+    }
+
+    /**
+     * Reads a transaction at the position of {@code buf}, advances past it and finalizes it.
+     *
+     * @throws IllegalArgumentException if the version is unknown, the record is malformed or the
+     *         stored hash does not match the contents
+     */
+    public static Transaction decodeTransaction(ByteBuffer buf) {
+        return TxView.wrap(buf, buf.position()).advance(buf).decode();
+    }
+
+    /** @return the encoding of the finalized {@code block} */
+    public static byte[] encode(Block block) {
+        ByteBuffer buf = ByteBuffer.allocate(encodedSize(block));
+        encode(block, buf);
+        return buf.array();
+    }
+
+    /** @return the number of bytes {@code encode} writes for {@code block}, length prefix included */
+    public static int encodedSize(Block block) {
+        int body = blockBodySize(block);
+        return varintSize(body) + body;
+    }
+
+    /** Writes {@code block} at the position of {@code buf} and advances it */
+    public static void encode(Block block, ByteBuffer buf) {
+        putVarint(buf, blockBodySize(block));
+        buf.put(VERSION);
+        putNullableBytes(buf, block.getPrevBlockHash());
+        putNullableBytes(buf, block.getHash());
+        encode(block.getCoinbase(), buf);
+        putVarint(buf, block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            encode(tx, buf);
+    }
+
+    /**
+     * Reads a block at the position of {@code buf}, advances past it and finalizes it.
+     *
+     * @throws IllegalArgumentException if the version is unknown, the record is malformed or a
+     *         stored hash does not match the contents
+     */
+    public static Block decodeBlock(ByteBuffer buf) {
+        return BlockView.wrap(buf, buf.position()).advance(buf).decode();
+    }
+
+    /** Flyweight over an encoded transaction; field offsets are found once when wrapping */
+    public static final class TxView {
+        private final ByteBuffer buf;
+        private final int start;
+        private final int end;
+        private final boolean coinbase;
+        private final int hashOffset;
+        /** offsets of each input's prevTxHash prefix and each output's value */
+        private final int[] inputs;
+        private final int[] outputs;
+
+        private TxView(ByteBuffer buf, int start) {
+            this.buf = buf;
+            this.start = start;
+            int[] pos = { start };
+            end = getEnd(buf, pos);
+            checkVersion(getByte(buf, pos, end));
+            coinbase = (getByte(buf, pos, end) & COINBASE_FLAG) != 0;
+            hashOffset = pos[0];
+            skipBytes(buf, pos, false, end);
+
+            inputs = new int[getCount(buf, pos, end)];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = pos[0];
+                skipBytes(buf, pos, true, end);
+                skip(pos, Integer.BYTES, end);
+                skipBytes(buf, pos, true, end);
+            }
+            outputs = new int[getCount(buf, pos, end)];
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = pos[0];
+                skip(pos, Long.BYTES, end);
+                skipBytes(buf, pos, false, end);
+                skipBytes(buf, pos, false, end);
+            }
+            if (pos[0] != end)
+                throw new IllegalArgumentException("transaction length does not match its fields");
+        }
+
+        /** @return a view of the transaction encoded at absolute offset {@code offset} of {@code buf} */
+        public static TxView wrap(ByteBuffer buf, int offset) {
+            return new TxView(buf, offset);
+        }
+
+        /** @return the number of bytes of the record, length prefix included */
+        public int getEncodedSize() {
+            return end - start;
+        }
+
+        public boolean isCoinbase() {
+            return coinbase;
+        }
+
+        /** @return the transaction hash as a read-only slice of the underlying buffer */
+        public ByteBuffer getHash() {
+            return slice(buf, hashOffset, false);
+        }
+
+        /** @return true if the stored hash equals {@code hash}, compared in place */
+        public boolean hashEquals(byte[] hash) {
+            return bytesEqual(buf, hashOffset, hash);
+        }
+
+        public int numInputs() {
+            return inputs.length;
+        }
+
+        /** @return the spent transaction hash of input {@code i} as a slice, or null */
+        public ByteBuffer getPrevTxHash(int i) {
+            return slice(buf, inputs[i], true);
+        }
+
+        public int getOutputIndex(int i) {
+            int[] pos = { inputs[i] };
+            skipBytes(buf, pos, true, end);
+            return buf.getInt(pos[0]);
+        }
+
+        /** @return the signature of input {@code i} as a slice, or null */
+        public ByteBuffer getSignature(int i) {
+            int[] pos = { inputs[i] };
+            skipBytes(buf, pos, true, end);
+            return slice(buf, pos[0] + Integer.BYTES, true);
+        }
+
+        public int numOutputs() {
+            return outputs.length;
+        }
+
+        public long getValue(int i) {
+            return buf.getLong(outputs[i]);
+        }
+
+        /** @return the fully built, finalized transaction */
+        public Transaction decode() {
+            Transaction tx;
+            if (coinbase) {
+                if (inputs.length != 0 || outputs.length != 1)
+                    throw new IllegalArgumentException("coinbase must have no inputs and one output");
+                tx = new Transaction(getValue(0), decodeKey(0));
+            } else {
+                tx = new Transaction();
+                for (int i = 0; i < inputs.length; i++) {
+                    tx.addInput(toArray(getPrevTxHash(i)), getOutputIndex(i));
+                    tx.addSignature(toArray(getSignature(i)), i);
+                }
+                for (int i = 0; i < outputs.length; i++)
+                    tx.addOutput(getValue(i), decodeKey(i));
+                tx.finalize();
+            }
+            if (!hashEquals(tx.getHash()))
+                throw new IllegalArgumentException("transaction hash does not match its contents");
+            return tx;
+        }
+
+        private PublicKey decodeKey(int i) {
+            int[] pos = { outputs[i] + Long.BYTES };
+            BigInteger exponent = new BigInteger(toArray(slice(buf, pos[0], false)));
+            skipBytes(buf, pos, false, end);
+            BigInteger modulus = new BigInteger(toArray(slice(buf, pos[0], false)));
+            try {
+                return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+            } catch (java.security.GeneralSecurityException x) {
+                throw new IllegalArgumentException("invalid public key in output " + i, x);
+            }
+        }
+
+        private TxView advance(ByteBuffer b) {
+            b.position(end);
+            return this;
+        }
+    }
+
+    /** Flyweight over an encoded block, giving views of its transactions */
+    public static final class BlockView {
+        private final ByteBuffer buf;
+        private final int start;
+        private final int end;
+        private final int prevHashOffset;
+        private final int hashOffset;
+        private final TxView coinbase;
+        private final int[] txs;
+
+        private BlockView(ByteBuffer buf, int start) {
+            this.buf = buf;
+            this.start = start;
+            int[] pos = { start };
+            end = getEnd(buf, pos);
+            checkVersion(getByte(buf, pos, end));
+            prevHashOffset = pos[0];
+            skipBytes(buf, pos, true, end);
+            hashOffset = pos[0];
+            skipBytes(buf, pos, true, end);
+            coinbase = TxView.wrap(buf, pos[0]);
+            skip(pos, coinbase.getEncodedSize(), end);
+            txs = new int[getCount(buf, pos, end)];
+            for (int i = 0; i < txs.length; i++) {
+                txs[i] = pos[0];
+                int txLength = getVarint(buf, pos, end);
+                skip(pos, txLength, end);
+            }
+            if (pos[0] != end)
+                throw new IllegalArgumentException("block length does not match its transactions");
+        }
+
+        /** @return a view of the block encoded at absolute offset {@code offset} of {@code buf} */
+        public static BlockView wrap(ByteBuffer buf, int offset) {
+            return new BlockView(buf, offset);
+        }
+
+        public int getEncodedSize() {
+            return end - start;
+        }
+
+        /** @return the previous block hash as a slice, or null for a genesis block */
+        public ByteBuffer getPrevBlockHash() {
+            return slice(buf, prevHashOffset, true);
+        }
+
+        /** @return the block hash as a slice, or null if the block was not finalized */
+        public ByteBuffer getHash() {
+            return slice(buf, hashOffset, true);
+        }
+
+        public TxView getCoinbase() {
+            return coinbase;
+        }
+
+        public int numTransactions() {
+            return txs.length;
+        }
+
+        /** @return a view of transaction {@code i}, found without decoding the ones before it */
+        public TxView getTransaction(int i) {
+            return TxView.wrap(buf, txs[i]);
+        }
+
+        /** @return the fully built, finalized block */
+        public Block decode() {
+            Transaction cb = coinbase.decode();
+            Block block = new Block(toArray(getPrevBlockHash()), cb.getOutput(0).address);
+            if (!block.getCoinbase().equals(cb))
+                throw new IllegalArgumentException("coinbase value must be " + Block.COINBASE);
+            for (int i = 0; i < txs.length; i++)
+                block.addTransaction(getTransaction(i).decode());
+            block.finalize();
+            ByteBuffer hash = getHash();
+            if (hash != null && !hash.equals(ByteBuffer.wrap(block.getHash())))
+                throw new IllegalArgumentException("block hash does not match its contents");
+            return block;
+        }
+
+        private BlockView advance(ByteBuffer b) {
+            b.position(end);
+            return this;
+        }
+    }
+
+    private static int txBodySize(Transaction tx) {
+        int size = 2 + bytesSize(tx.getHash(), false) + varintSize(tx.numInputs()) + varintSize(tx.numOutputs());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            size += bytesSize(in.prevTxHash, true) + Integer.BYTES + bytesSize(in.getSignature(), true);
+        }
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            EncodedKey key = tx.getOutput(i).getEncodedAddress();
+            int exponent = key.getExponentLength();
+            int modulus = key.size() - exponent;
+            size += Long.BYTES + varintSize(exponent) + exponent + varintSize(modulus) + modulus;
+        }
+        return size;
+    }
+
+    private static int blockBodySize(Block block) {
+        int size = 1 + bytesSize(block.getPrevBlockHash(), true) + bytesSize(block.getHash(), true)
+                + encodedSize(block.getCoinbase()) + varintSize(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            size += encodedSize(tx);
+        return size;
+    }
+
+    private static void checkVersion(byte version) {
+        if (version != VERSION)
+            throw new IllegalArgumentException("unsupported wire version " + version);
+    }
+
+    private static int bytesSize(byte[] b, boolean nullable) {
+        if (b == null)
+            return 1;
+        return varintSize(nullable ? b.length + 1 : b.length) + b.length;
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] b) {
+        putVarint(buf, b.length);
+        buf.put(b);
+    }
+
+    private static void putNullableBytes(ByteBuffer buf, byte[] b) {
+        if (b == null) {
+            putVarint(buf, 0);
+        } else {
+            putVarint(buf, b.length + 1);
+            buf.put(b);
+        }
+    }
+
+    /** @return the bytes field at {@code offset} as a read-only slice, or null if it is null */
+    private static ByteBuffer slice(ByteBuffer buf, int offset, boolean nullable) {
+        int[] pos = { offset };
+        int length = getVarint(buf, pos, buf.limit());
+        if (nullable) {
+            if (length == 0)
+                return null;
+            length--;
+        }
+        return buf.slice(pos[0], length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads the length prefix of a record at {@code pos[0]} and advances past it.
+     *
+     * @return the offset just past the record, which must lie within the buffer
+     */
+    private static int getEnd(ByteBuffer buf, int[] pos) {
+        if (pos[0] < 0)
+            throw new IllegalArgumentException("record starts before the buffer");
+        int length = getVarint(buf, pos, buf.limit());
+        if (length > buf.limit() - pos[0])
+            throw new IllegalArgumentException("record runs past the end of the buffer");
+        return pos[0] + length;
+    }
+
+    /** Reads the byte at {@code pos[0]}, before {@code limit}, and advances past it */
+    private static byte getByte(ByteBuffer buf, int[] pos, int limit) {
+        if (pos[0] >= limit)
+            throw new IllegalArgumentException("record ends within a field");
+        return buf.get(pos[0]++);
+    }
+
+    /** Advances {@code pos[0]} by {@code length} bytes, which must end by {@code limit} */
+    private static void skip(int[] pos, int length, int limit) {
+        if (length > limit - pos[0])
+            throw new IllegalArgumentException("record ends within a field");
+        pos[0] += length;
+    }
+
+    private static void skipBytes(ByteBuffer buf, int[] pos, boolean nullable, int limit) {
+        int length = getVarint(buf, pos, limit);
+        if (nullable && length > 0)
+            length--;
+        skip(pos, length, limit);
+    }
+
+    private static boolean bytesEqual(ByteBuffer buf, int offset, byte[] b) {
+        int[] pos = { offset };
+        int length = getVarint(buf, pos, buf.limit());
+        if (b == null || length != b.length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (buf.get(pos[0] + i) != b[i])
+                return false;
+        return true;
+    }
+
+    private static byte[] toArray(ByteBuffer slice) {
+        if (slice == null)
+            return null;
+        byte[] b = new byte[slice.remaining()];
+        slice.duplicate().get(b);
+        return b;
+    }
+
+    /** Reads a count and checks that it cannot exceed the bytes left before {@code limit} */
+    private static int getCount(ByteBuffer buf, int[] pos, int limit) {
+        int count = getVarint(buf, pos, limit);
+        if (count > limit - pos[0])
+            throw new IllegalArgumentException("count exceeds the remaining bytes");
+        return count;
+    }
+
+    private static int varintSize(int v) {
+        int size = 1;
+        while ((v >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buf, int v) {
+        while ((v & ~0x7f) != 0) {
+            buf.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    /** Reads an unsigned LEB128 int at {@code pos[0]}, ending before {@code limit}, and advances it */
+    private static int getVarint(ByteBuffer buf, int[] pos, int limit) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = getByte(buf, pos, limit);
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (v < 0)
+                    throw new IllegalArgumentException("varint out of range");
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+}
@@ -1,7 +1,12 @@
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -22,6 +27,14 @@ class BlockChainTest {
         return signature.sign();
     }
 
+    /** Adds and returns an empty block on top of {@code previous} paying user {@code miner} */
+    private Block emptyBlock(Block previous, int miner) {
+        Block block = new Block(previous.getHash(), users.get(miner).getPublic());
+        block.finalize();
+        assertTrue(chain.addBlock(block));
+        return block;
+    }
+
     protected void setUp() throws Exception {
 
         // Generate key pairs
@@ -55,7 +68,7 @@ class BlockChainTest {
 
         // Check previous hash and coinbase
         Block currentMaxHeightBlock = chain.getMaxHeightBlock();
-        Transaction coinbase = new Transaction(25, users.get(0).getPublic());
+        Transaction coinbase = new Transaction(Block.COINBASE, users.get(0).getPublic());
 
         assertEquals(null, currentMaxHeightBlock.getPrevBlockHash());
         assertEquals(coinbase, currentMaxHeightBlock.getCoinbase());
@@ -94,7 +107,7 @@ class BlockChainTest {
 
         // Check block of main chain: hash and coinbase
         assertEquals(second.getHash(), chain.getMaxHeightBlock().getHash());
-        assertEquals(new Transaction(25, users.get(1).getPublic()), chain.getMaxHeightBlock().getCoinbase());
+        assertEquals(new Transaction(Block.COINBASE, users.get(1).getPublic()), chain.getMaxHeightBlock().getCoinbase());
 
     }
 
@@ -136,35 +149,46 @@ class BlockChainTest {
         a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
         a.finalize();
 
-        // Initiate transaction b
+        // Initiate transaction b, signed by the wrong key
         Transaction b = new Transaction();
         b.addInput(genesis.getCoinbase().getHash(), 0);
         b.addOutput(1, users.get(12).getPublic());
         b.addSignature(sign(users.get(10), b.getRawDataToSign(0)), 0);
         b.finalize();
 
-        // Add transactions a and b to chain
-        chain.addTransaction(a);
-        chain.addTransaction(b);
-
-        ArrayList<Transaction> expTransactionsAll = new ArrayList<>();
-        expTransactionsAll.add(a);
-        expTransactionsAll.add(b);
-
-        // Ensure that transactions a and b are in transaction pool
-        assertEquals(expTransactionsAll.size(), chain.getTransactionPool().getTransactions().size());
+        // Initiate transaction c, spending a
+        Transaction c = new Transaction();
+        c.addInput(a.getHash(), 0);
+        c.addOutput(1, users.get(13).getPublic());
+        c.addSignature(sign(users.get(10), c.getRawDataToSign(0)), 0);
+        c.finalize();
 
-        // Add transaction a to block
-        second.addTransaction(a);
+        // Initiate transaction d, conflicting with a
+        Transaction d = new Transaction();
+        d.addInput(genesis.getCoinbase().getHash(), 0);
+        d.addOutput(1, users.get(14).getPublic());
+        d.addSignature(sign(users.get(0), d.getRawDataToSign(0)), 0);
+        d.finalize();
+
+        // Add transactions to chain; c is admitted although it comes before its parent a
+        ValidationResult[] results = chain.addTransactions(new Transaction[] { c, a, b, d });
+        assertArrayEquals(new ValidationResult[] { ValidationResult.VALID, ValidationResult.VALID,
+                ValidationResult.BAD_SIGNATURE, ValidationResult.DOUBLE_SPEND }, results);
+
+        // Ensure that only transactions a and c are in transaction pool
+        assertEquals(2, chain.getTransactionPool().getTransactions().size());
+        UTXO coinbase = new UTXO(genesis.getCoinbase().getHash(), 0);
+        assertEquals(Arrays.asList(a), chain.getTransactionPool().getSpenders(coinbase));
+        assertEquals(Arrays.asList(c), chain.getTransactionPool().getSpenders(new UTXO(a.getHash(), 0)));
+
+        // Add transaction d to block
+        second.addTransaction(d);
         second.finalize();
         assertTrue(chain.addBlock(second));
 
-        ArrayList<Transaction> expTransactions = new ArrayList<>();
-        expTransactions.add(b);
-
-        // Ensure that transaction b remains in transaction pool
-        // Remark: transaction b depends on a
-        assertEquals(expTransactions, chain.getTransactionPool().getTransactions());
+        // Ensure that transaction a, which conflicts with d, is evicted with its child c
+        assertEquals(0, chain.getTransactionPool().size());
+        assertEquals(0, chain.getTransactionPool().getSpenders(coinbase).size());
 
     }
 
@@ -178,8 +202,8 @@ class BlockChainTest {
         // Initiate first transaction and include in block
         Transaction a = new Transaction();
         a.addInput(genesis.getCoinbase().getHash(), 0);
-        a.addOutput(2, users.get(6).getPublic());
-        a.addOutput(4, users.get(7).getPublic());
+        a.addOutput(2 * Transaction.COIN, users.get(6).getPublic());
+        a.addOutput(4 * Transaction.COIN, users.get(7).getPublic());
         a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
         a.finalize();
         second.addTransaction(a);
@@ -187,7 +211,7 @@ class BlockChainTest {
         // Initiate second transaction and include in block
         Transaction b = new Transaction();
         b.addInput(a.getHash(), 0);
-        b.addOutput(0.5, users.get(8).getPublic());
+        b.addOutput(Transaction.COIN / 2, users.get(8).getPublic());
         b.addSignature(sign(users.get(6), b.getRawDataToSign(0)), 0);
         b.finalize();
         second.addTransaction(b);
@@ -203,7 +227,7 @@ class BlockChainTest {
         // Initiate fourth transaction and include in block
         Transaction c = new Transaction();
         c.addInput(b.getHash(), 0);
-        c.addOutput(0.1, users.get(9).getPublic());
+        c.addOutput(Transaction.COIN / 10, users.get(9).getPublic());
         c.addSignature(sign(users.get(8), c.getRawDataToSign(0)), 0);
         c.finalize();
         third.addTransaction(c);
@@ -215,7 +239,7 @@ class BlockChainTest {
 
         // Check block of main chain: hash and coinbase
         assertEquals(third.getHash(), chain.getMaxHeightBlock().getHash());
-        assertEquals(new Transaction(25, users.get(2).getPublic()), chain.getMaxHeightBlock().getCoinbase());
+        assertEquals(new Transaction(Block.COINBASE, users.get(2).getPublic()), chain.getMaxHeightBlock().getCoinbase());
 
         // Check if UTXO pool still contains unspent outputs from transaction a
         assertTrue(chain.getMaxHeightUTXOPool().contains(new UTXO(a.getHash(), 1)));
@@ -270,6 +294,43 @@ class BlockChainTest {
 
     }
 
+    @Test
+    public void testBlocksTooDeepAreDropped() throws Exception {
+        this.genesisSetUp();
+
+        BlockChain.CUT_OFF_AGE = 3;
+        try {
+            // Main branch up to height 4, with a fork leaving it at height 2
+            Block[] main = new Block[8];
+            main[1] = genesis;
+            for (int height = 2; height <= 4; height++)
+                main[height] = emptyBlock(main[height - 1], 1);
+            Block fork3 = emptyBlock(main[2], 2);
+            Block fork4 = emptyBlock(fork3, 2);
+
+            // Up to height 7, so blocks below height 4 can never be a parent again
+            for (int height = 5; height <= 7; height++)
+                main[height] = emptyBlock(main[height - 1], 1);
+            Block belowCutOff = new Block(main[3].getHash(), users.get(1).getPublic());
+            belowCutOff.finalize();
+            assertEquals(ValidationResult.UNKNOWN_PARENT, chain.tryAddBlock(belowCutOff));
+
+            // The fork is high enough, but leaves the main branch below the blocks kept
+            Block fork5 = new Block(fork4.getHash(), users.get(2).getPublic());
+            fork5.finalize();
+            assertEquals(ValidationResult.BAD_HEIGHT, chain.tryAddBlock(fork5));
+
+            // Parents are found by the contents of the hash, not by the array
+            Block next = new Block(main[7].getHash().clone(), users.get(1).getPublic());
+            next.finalize();
+            assertEquals(ValidationResult.VALID, chain.tryAddBlock(next));
+            assertEquals(next.getHash(), chain.getMaxHeightBlock().getHash());
+        } finally {
+            BlockChain.CUT_OFF_AGE = 10;
+        }
+
+    }
+
     @Test
     public void testBlockWithUTXOInTransactionAlreadyClaimed() throws Exception {
         this.genesisSetUp();
@@ -357,4 +418,972 @@ class BlockChainTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testBlockHashCommitsToMerkleRoot() throws Exception {
+        this.genesisSetUp();
+
+        // Sibling blocks without transactions differ only by their coinbase
+        Block forkA = new Block(genesis.getHash(), users.get(1).getPublic());
+        forkA.finalize();
+        Block forkB = new Block(genesis.getHash(), users.get(2).getPublic());
+        forkB.finalize();
+        assertFalse(Arrays.equals(forkA.getHash(), forkB.getHash()));
+
+        // Header is previous hash plus Merkle root
+        assertEquals(64, forkA.getHeader().length);
+
+        // Adding a transaction updates the Merkle root and therefore the block hash
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(5, users.get(3).getPublic());
+        a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        // A transaction without a hash yet cannot be committed to
+        Transaction unfinalized = new Transaction();
+        unfinalized.addOutput(5, users.get(3).getPublic());
+        assertThrows(IllegalStateException.class, () -> forkB.addTransaction(unfinalized));
+
+        byte[] rootBefore = forkA.getMerkleRoot();
+        forkA.addTransaction(a);
+        forkA.finalize();
+        assertFalse(Arrays.equals(rootBefore, forkA.getMerkleRoot()));
+        // Transactions only change through addTransaction, so the root cannot go stale
+        assertThrows(UnsupportedOperationException.class, () -> forkA.getTransactions().set(0, a));
+
+        // Repeating b, the last of an odd level, keeps the root, but the copy is rejected
+        Transaction b = new Transaction();
+        b.addInput(a.getHash(), 0);
+        b.addOutput(5, users.get(4).getPublic());
+        b.addSignature(sign(users.get(3), b.getRawDataToSign(0)), 0);
+        b.finalize();
+        Block forkC = new Block(genesis.getHash(), users.get(5).getPublic());
+        forkC.addTransaction(a);
+        forkC.addTransaction(b);
+        forkC.finalize();
+        Block duplicated = new Block(genesis.getHash(), users.get(5).getPublic());
+        duplicated.addTransaction(a);
+        duplicated.addTransaction(b);
+        duplicated.addTransaction(b);
+        duplicated.finalize();
+        assertArrayEquals(forkC.getHash(), duplicated.getHash());
+        assertEquals(ValidationResult.INVALID_TRANSACTION, chain.tryAddBlock(duplicated));
+        assertEquals(ValidationResult.VALID, chain.tryAddBlock(forkC));
+        assertTrue(chain.addBlock(forkA));
+
+    }
+
+    @Test
+    public void testParallelVerificationMatchesSerial() throws Exception {
+        this.genesisSetUp();
+
+        // Transaction a spends genesis coinbase
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(10, users.get(1).getPublic());
+        a.addOutput(10, users.get(2).getPublic());
+        a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        // Transaction b spends a's first output within the same batch
+        Transaction b = new Transaction();
+        b.addInput(a.getHash(), 0);
+        b.addOutput(5, users.get(3).getPublic());
+        b.addSignature(sign(users.get(1), b.getRawDataToSign(0)), 0);
+        b.finalize();
+
+        // Transaction c double spends genesis coinbase
+        Transaction c = new Transaction();
+        c.addInput(genesis.getCoinbase().getHash(), 0);
+        c.addOutput(1, users.get(4).getPublic());
+        c.addSignature(sign(users.get(0), c.getRawDataToSign(0)), 0);
+        c.finalize();
+
+        // Transaction d spends a's second output with a wrong signature
+        Transaction d = new Transaction();
+        d.addInput(a.getHash(), 1);
+        d.addOutput(1, users.get(5).getPublic());
+        d.addSignature(sign(users.get(1), d.getRawDataToSign(0)), 0);
+        d.finalize();
+
+        Transaction[] batch = new Transaction[] { b, a, c, d, b };
+        TxHandler serial = new TxHandler(chain.getMaxHeightUTXOPool());
+        TxHandler parallel = new TxHandler(chain.getMaxHeightUTXOPool(), ForkJoinPool.commonPool());
+
+        Transaction[] expected = serial.handleTxs(batch);
+        assertTrue(Arrays.equals(expected, parallel.handleTxs(batch)));
+        assertTrue(Arrays.equals(new Transaction[] { a, b }, expected));
+
+        // Only a, b and d are verified: c conflicts with a and the second b duplicates the first
+        SignatureCache cache = new SignatureCache(16);
+        TxHandler counted = new TxHandler(chain.getMaxHeightUTXOPool(), ForkJoinPool.commonPool(), cache);
+        assertTrue(Arrays.equals(expected, counted.handleTxs(batch)));
+        assertEquals(3, cache.getHits() + cache.getMisses());
+
+    }
+
+    @Test
+    public void testSignatureCacheSharedByCreateAndAddBlock() throws Exception {
+        this.genesisSetUp();
+
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(10, users.get(1).getPublic());
+        a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
+        a.finalize();
+        handler.processTx(a);
+
+        // Admission verifies a once, creating and connecting the block hit the cache
+        Block created = handler.createBlock(users.get(2).getPublic());
+        assertNotNull(created);
+        assertEquals(1, created.getTransactions().size());
+
+        SignatureCache cache = chain.getSignatureCache();
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.size());
+
+    }
+
+    @Test
+    public void testForkOvertakingMainRebuildsUTXOPool() throws Exception {
+        this.genesisSetUp();
+
+        // Main branch spends genesis coinbase in transaction a
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(10, users.get(1).getPublic());
+        a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        Block mainBlock = new Block(genesis.getHash(), users.get(1).getPublic());
+        mainBlock.addTransaction(a);
+        mainBlock.finalize();
+        assertTrue(chain.addBlock(mainBlock));
+
+        // Fork spends genesis coinbase differently in transaction b
+        Transaction b = new Transaction();
+        b.addInput(genesis.getCoinbase().getHash(), 0);
+        b.addOutput(20, users.get(2).getPublic());
+        b.addSignature(sign(users.get(0), b.getRawDataToSign(0)), 0);
+        b.finalize();
+
+        Block forkBlock = new Block(genesis.getHash(), users.get(3).getPublic());
+        forkBlock.addTransaction(b);
+        forkBlock.finalize();
+        assertTrue(chain.addBlock(forkBlock));
+
+        // Main pool still reflects transaction a
+        assertTrue(chain.getMaxHeightUTXOPool().contains(new UTXO(a.getHash(), 0)));
+        assertFalse(chain.getMaxHeightUTXOPool().contains(new UTXO(b.getHash(), 0)));
+
+        // Extending the fork makes it the main branch
+        Block forkNext = new Block(forkBlock.getHash(), users.get(4).getPublic());
+        forkNext.finalize();
+        assertTrue(chain.addBlock(forkNext));
+        assertEquals(forkNext.getHash(), chain.getMaxHeightBlock().getHash());
+
+        UTXOPool pool = chain.getMaxHeightUTXOPool();
+        assertFalse(pool.contains(new UTXO(a.getHash(), 0)));
+        assertTrue(pool.contains(new UTXO(b.getHash(), 0)));
+        assertFalse(pool.contains(new UTXO(genesis.getCoinbase().getHash(), 0)));
+        assertTrue(pool.contains(new UTXO(forkNext.getCoinbase().getHash(), 0)));
+        assertEquals(3, pool.getAllUTXO().size());
+
+        // A block on the old main branch is validated against that branch's pool again
+        Transaction c = new Transaction();
+        c.addInput(a.getHash(), 0);
+        c.addOutput(5, users.get(5).getPublic());
+        c.addSignature(sign(users.get(1), c.getRawDataToSign(0)), 0);
+        c.finalize();
+
+        Block mainNext = new Block(mainBlock.getHash(), users.get(5).getPublic());
+        mainNext.addTransaction(c);
+        mainNext.finalize();
+        assertTrue(chain.addBlock(mainNext));
+
+    }
+
+    @Test
+    public void testFinalizedTransactionIsImmutable() throws Exception {
+        this.genesisSetUp();
+
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(10, users.get(1).getPublic());
+        a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        // Any change after finalize is rejected
+        assertTrue(a.isFinalized());
+        assertThrows(IllegalStateException.class, () -> a.addOutput(5, users.get(2).getPublic()));
+        assertThrows(IllegalStateException.class, () -> a.addInput(genesis.getCoinbase().getHash(), 1));
+        assertThrows(IllegalStateException.class, () -> a.getInput(0).addSignature(new byte[256]));
+        assertThrows(UnsupportedOperationException.class, () -> a.getOutputs().clear());
+
+        // A copy is modifiable and equal until it changes
+        Transaction copy = new Transaction(a);
+        assertFalse(copy.isFinalized());
+        assertEquals(a, copy);
+        assertEquals(a.hashCode(), copy.hashCode());
+        copy.addOutput(5, users.get(2).getPublic());
+        assertFalse(a.equals(copy));
+        assertThrows(UnsupportedOperationException.class, () -> copy.getInputs().clear());
+
+        // The hash code comes from the hash, which is handed out as a copy
+        assertEquals(ByteBuffer.wrap(a.getHash()).getInt(), a.hashCode());
+        a.getHash()[0] ^= 1;
+        assertEquals(a, new Transaction(a));
+        assertEquals(ByteBuffer.wrap(a.getHash()).getInt(), a.hashCode());
+
+    }
+
+    @Test
+    public void testOffHeapUTXOTable() throws Exception {
+        this.setUp();
+
+        OffHeapUTXOTable table = new OffHeapUTXOTable(16);
+        long reserved = table.getReservedBytes();
+        byte[] hash = new byte[OffHeapUTXOTable.HASH_SIZE];
+        hash[31] = 1;
+
+        // Put, find, overwrite and remove
+        table.put(hash, 0, 10, users.get(0).getPublic());
+        table.put(hash, 1, 20, users.get(1).getPublic());
+        assertEquals(2, table.size());
+        int offset = table.find(hash, 1);
+        assertEquals(20, table.getValue(offset));
+        assertEquals(users.get(1).getPublic(), table.getAddress(offset));
+        table.put(hash, 1, 25, users.get(2).getPublic());
+        assertEquals(2, table.size());
+        assertEquals(25, table.getValue(table.find(hash, 1)));
+        assertEquals(users.get(2).getPublic(), table.getAddress(table.find(hash, 1)));
+        assertTrue(table.remove(hash, 0));
+        assertFalse(table.remove(hash, 0));
+        assertEquals(-1, table.find(hash, 0));
+        assertTrue(table.contains(hash, 1));
+
+        // The removed slot is reused, and churn rehashes in place instead of growing
+        table.put(hash, 0, 30, users.get(0).getPublic());
+        assertEquals(30, table.getValue(table.find(hash, 0)));
+        for (int i = 2; i < 1000; i++) {
+            table.put(hash, i, i, users.get(0).getPublic());
+            assertTrue(table.remove(hash, i));
+        }
+        assertEquals(2, table.size());
+        assertEquals(reserved, table.getReservedBytes());
+
+        // Growing past the expected size keeps every coin
+        for (int i = 0; i < 1000; i++) {
+            byte[] other = new byte[OffHeapUTXOTable.HASH_SIZE];
+            other[0] = (byte) i;
+            other[1] = (byte) (i >> 8);
+            table.put(other, i, i, users.get(i % 10).getPublic());
+        }
+        assertEquals(1002, table.size());
+        assertTrue(table.getReservedBytes() > reserved);
+        for (int i = 0; i < 1000; i++) {
+            byte[] other = new byte[OffHeapUTXOTable.HASH_SIZE];
+            other[0] = (byte) i;
+            other[1] = (byte) (i >> 8);
+            offset = table.find(other, i);
+            assertEquals(i, table.getValue(offset));
+            assertEquals(users.get(i % 10).getPublic(), table.getAddress(offset));
+        }
+        assertEquals(30, table.getValue(table.find(hash, 0)));
+        assertThrows(IllegalArgumentException.class, () -> table.put(new byte[8], 0, 1, users.get(0).getPublic()));
+
+    }
+
+    @Test
+    public void testWireCodecRoundTrip() throws Exception {
+        this.genesisSetUp();
+
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(10, users.get(1).getPublic());
+        a.addOutput(15, users.get(2).getPublic());
+        a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        Block block = new Block(genesis.getHash(), users.get(1).getPublic());
+        block.addTransaction(a);
+        block.finalize();
+
+        // A full decode rebuilds the same hashes
+        Block decoded = WireCodec.decodeBlock(ByteBuffer.wrap(WireCodec.encode(block)));
+        assertArrayEquals(block.getHash(), decoded.getHash());
+        assertEquals(a, decoded.getTransaction(0));
+        assertEquals(block.getCoinbase(), decoded.getCoinbase());
+
+        // The views read fields in place
+        ByteBuffer buf = ByteBuffer.wrap(WireCodec.encode(block));
+        WireCodec.BlockView view = WireCodec.BlockView.wrap(buf, 0);
+        assertEquals(buf.limit(), view.getEncodedSize());
+        assertEquals(ByteBuffer.wrap(genesis.getHash()), view.getPrevBlockHash());
+        assertTrue(view.getCoinbase().isCoinbase());
+        assertEquals(1, view.numTransactions());
+        WireCodec.TxView tx = view.getTransaction(0);
+        assertTrue(tx.hashEquals(a.getHash()));
+        assertEquals(ByteBuffer.wrap(genesis.getCoinbase().getHash()), tx.getPrevTxHash(0));
+        assertEquals(0, tx.getOutputIndex(0));
+        assertEquals(15, tx.getValue(1));
+
+        // Records are self-delimiting and versioned
+        ByteBuffer two = ByteBuffer.allocate(2 * WireCodec.encodedSize(a));
+        WireCodec.encode(a, two);
+        WireCodec.encode(a, two);
+        two.flip();
+        assertEquals(a, WireCodec.decodeTransaction(two));
+        assertEquals(a, WireCodec.decodeTransaction(two));
+        assertFalse(two.hasRemaining());
+        byte[] bytes = WireCodec.encode(a);
+        bytes[2] = 2;
+        assertThrows(IllegalArgumentException.class, () -> WireCodec.decodeTransaction(ByteBuffer.wrap(bytes)));
+
+        // Every truncation is rejected as malformed, never read past the end
+        byte[] whole = WireCodec.encode(block);
+        for (int length = 0; length < whole.length; length++) {
+            ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(whole, length));
+            assertThrows(IllegalArgumentException.class, () -> WireCodec.decodeBlock(truncated));
+        }
+
+        // So are lengths larger than the record or the buffer, and varints longer than an int
+        byte[] longRecord = WireCodec.encode(a);
+        longRecord[1] = 0x7f;
+        assertThrows(IllegalArgumentException.class, () -> WireCodec.decodeTransaction(ByteBuffer.wrap(longRecord)));
+        byte[] longHash = WireCodec.encode(a);
+        longHash[4] = 0x7f;
+        assertThrows(IllegalArgumentException.class, () -> WireCodec.decodeTransaction(ByteBuffer.wrap(longHash)));
+        byte[] longVarint = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0 };
+        assertThrows(IllegalArgumentException.class, () -> WireCodec.decodeTransaction(ByteBuffer.wrap(longVarint)));
+
+    }
+
+    @Test
+    public void testTxHandlerLeavesPoolUntilCommit() throws Exception {
+        this.genesisSetUp();
+
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(10, users.get(1).getPublic());
+        a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        UTXOPool pool = chain.getMaxHeightUTXOPool();
+        UTXO spent = new UTXO(genesis.getCoinbase().getHash(), 0);
+        UTXO created = new UTXO(a.getHash(), 0);
+        TxHandler txHandler = new TxHandler(pool);
+        assertEquals(1, txHandler.handleTxs(new Transaction[] { a }).length);
+
+        // The given pool is untouched; the handler's pool has the changes
+        assertTrue(pool.contains(spent));
+        assertFalse(pool.contains(created));
+        UTXOPool committed = txHandler.getUTXOPool();
+        assertFalse(committed.contains(spent));
+        assertEquals(a.getOutput(0), committed.getTxOutput(created));
+
+        // Discarding an overlay restores its base
+        UTXOView view = new UTXOView(pool);
+        view.removeUTXO(spent);
+        view.addUTXO(created, a.getOutput(0));
+        assertFalse(view.contains(spent));
+        view.discard();
+        assertTrue(view.contains(spent));
+        assertFalse(view.contains(created));
+        assertEquals(0, view.size());
+
+    }
+
+    @Test
+    public void testChildBeforeParentInSameBlock() throws Exception {
+        this.genesisSetUp();
+
+        Transaction parent = new Transaction();
+        parent.addInput(genesis.getCoinbase().getHash(), 0);
+        parent.addOutput(20, users.get(1).getPublic());
+        parent.addSignature(sign(users.get(0), parent.getRawDataToSign(0)), 0);
+        parent.finalize();
+
+        Transaction child = new Transaction();
+        child.addInput(parent.getHash(), 0);
+        child.addOutput(15, users.get(2).getPublic());
+        child.addSignature(sign(users.get(1), child.getRawDataToSign(0)), 0);
+        child.finalize();
+
+        // Both are accepted although the child comes first
+        TxHandler txHandler = new TxHandler(chain.getMaxHeightUTXOPool());
+        Transaction[] accepted = txHandler.handleTxs(new Transaction[] { child, parent });
+        assertEquals(2, accepted.length);
+        assertEquals(parent, accepted[0]);
+
+        Block block = new Block(genesis.getHash(), users.get(1).getPublic());
+        block.addTransaction(child);
+        block.addTransaction(parent);
+        block.finalize();
+        assertTrue(handler.processBlock(block));
+
+        // The parent's output is spent in the resulting pool
+        UTXOPool pool = chain.getMaxHeightUTXOPool();
+        assertFalse(pool.contains(new UTXO(parent.getHash(), 0)));
+        assertTrue(pool.contains(new UTXO(child.getHash(), 0)));
+
+    }
+
+    @Test
+    public void testMaxFeeTxHandlerPrefersHigherTotalFee() throws Exception {
+        this.genesisSetUp();
+
+        KeyPair owner = users.get(0);
+        Transaction split = new Transaction();
+        split.addInput(genesis.getCoinbase().getHash(), 0);
+        split.addOutput(10 * Transaction.COIN, owner.getPublic());
+        split.addOutput(10 * Transaction.COIN, owner.getPublic());
+        split.addSignature(sign(owner, split.getRawDataToSign(0)), 0);
+        split.finalize();
+
+        // Spending both outputs pays 10, spending them separately pays 6 + 6
+        Transaction both = new Transaction();
+        both.addInput(split.getHash(), 0);
+        both.addInput(split.getHash(), 1);
+        both.addOutput(20 * Transaction.COIN - 10, users.get(1).getPublic());
+        both.addSignature(sign(owner, both.getRawDataToSign(0)), 0);
+        both.addSignature(sign(owner, both.getRawDataToSign(1)), 1);
+        both.finalize();
+
+        Transaction[] single = new Transaction[2];
+        for (int i = 0; i < 2; i++) {
+            single[i] = new Transaction();
+            single[i].addInput(split.getHash(), i);
+            single[i].addOutput(10 * Transaction.COIN - 6, users.get(2 + i).getPublic());
+            single[i].addSignature(sign(owner, single[i].getRawDataToSign(0)), 0);
+            single[i].finalize();
+        }
+
+        // Array order and fee order both take the transaction spending both outputs
+        Transaction[] batch = new Transaction[] { both, single[0], single[1], split };
+        Transaction[] first = new TxHandler(chain.getMaxHeightUTXOPool()).handleTxs(batch);
+        assertEquals(2, first.length);
+
+        MaxFeeTxHandler maxFee = new MaxFeeTxHandler(chain.getMaxHeightUTXOPool());
+        Transaction[] accepted = maxFee.handleTxs(batch);
+        assertEquals(3, accepted.length);
+        assertEquals(split, accepted[0]);
+        assertTrue(Arrays.asList(accepted).contains(single[0]));
+        assertTrue(Arrays.asList(accepted).contains(single[1]));
+
+        // The accepted set is mutually valid
+        assertEquals(3, new TxHandler(chain.getMaxHeightUTXOPool()).handleTxs(accepted).length);
+        assertTrue(maxFee.getUTXOPool().contains(new UTXO(single[1].getHash(), 0)));
+
+        // A negative output index into a batch transaction is rejected rather than thrown on
+        Transaction negative = new Transaction();
+        negative.addInput(split.getHash(), -1);
+        negative.addOutput(1, users.get(4).getPublic());
+        negative.addSignature(sign(owner, negative.getRawDataToSign(0)), 0);
+        negative.finalize();
+        MaxFeeTxHandler guarded = new MaxFeeTxHandler(chain.getMaxHeightUTXOPool());
+        assertArrayEquals(new Transaction[] { split }, guarded.handleTxs(new Transaction[] { split, negative }));
+        assertEquals(1, guarded.getRejectionCounters().get(ValidationResult.MISSING_INPUT));
+
+        // Spending single[0] without a fee adds nothing, but still fits next to the best set
+        Transaction free = new Transaction();
+        free.addInput(single[0].getHash(), 0);
+        free.addOutput(10 * Transaction.COIN - 6, users.get(2).getPublic());
+        free.addSignature(sign(users.get(2), free.getRawDataToSign(0)), 0);
+        free.finalize();
+        Transaction[] withFree = new MaxFeeTxHandler(chain.getMaxHeightUTXOPool(), ForkJoinPool.commonPool(), null)
+                .handleTxs(new Transaction[] { both, single[0], single[1], split, free });
+        assertEquals(4, withFree.length);
+        assertTrue(Arrays.asList(withFree).contains(free));
+
+        // A chain too long to solve exactly hangs off single[0], which the greedy pass cannot take
+        // next to both; every package of the chain is left out
+        ArrayList<Transaction> chained = new ArrayList<>(Arrays.asList(split, both, single[0]));
+        Transaction tail = single[0];
+        for (int i = 0; i < MaxFeeTxHandler.EXACT_COMPONENT_SIZE; i++) {
+            Transaction next = new Transaction();
+            next.addInput(tail.getHash(), 0);
+            next.addOutput(tail.getOutput(0).value - 1, users.get(2).getPublic());
+            next.addSignature(sign(users.get(2), next.getRawDataToSign(0)), 0);
+            next.finalize();
+            chained.add(next);
+            tail = next;
+        }
+        Transaction[] greedy = new MaxFeeTxHandler(chain.getMaxHeightUTXOPool())
+                .handleTxs(chained.toArray(new Transaction[0]));
+        assertArrayEquals(new Transaction[] { split, both }, greedy);
+
+    }
+
+    @Test
+    public void testRejectionReasonsAreCounted() throws Exception {
+        this.genesisSetUp();
+
+        // Signed by the wrong key
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(10, users.get(1).getPublic());
+        a.addSignature(sign(users.get(1), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        Block block = new Block(genesis.getHash(), users.get(1).getPublic());
+        block.addTransaction(a);
+        block.finalize();
+        assertEquals(ValidationResult.INVALID_TRANSACTION, chain.tryAddBlock(block));
+
+        Block orphan = new Block(block.getHash(), users.get(1).getPublic());
+        orphan.finalize();
+        assertEquals(ValidationResult.UNKNOWN_PARENT, chain.tryAddBlock(orphan));
+        assertFalse(chain.addBlock(genesis));
+
+        RejectionCounters rejections = chain.getRejectionCounters();
+        assertEquals(1, rejections.get(ValidationResult.BAD_SIGNATURE));
+        assertEquals(1, rejections.get(ValidationResult.INVALID_TRANSACTION));
+        assertEquals(1, rejections.get(ValidationResult.UNKNOWN_PARENT));
+        assertEquals(1, rejections.get(ValidationResult.GENESIS_BLOCK));
+        assertEquals(4, rejections.total());
+
+    }
+
+    @Test
+    public void testNegativeOutputIndexIsMalformed() throws Exception {
+        this.genesisSetUp();
+
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(10, users.get(1).getPublic());
+        a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        Transaction[] negative = new Transaction[2];
+        for (int i = 0; i < negative.length; i++) {
+            negative[i] = new Transaction();
+            negative[i].addInput(a.getHash(), -1);
+            negative[i].addOutput(1 + i, users.get(2).getPublic());
+            negative[i].addSignature(sign(users.get(1), negative[i].getRawDataToSign(0)), 0);
+            negative[i].finalize();
+        }
+
+        // Spending a negative output of a parent in the same batch, then of a pooled parent
+        assertArrayEquals(new ValidationResult[] { ValidationResult.VALID, ValidationResult.MALFORMED },
+                chain.addTransactions(new Transaction[] { a, negative[0] }));
+        assertArrayEquals(new ValidationResult[] { ValidationResult.MALFORMED },
+                chain.addTransactions(new Transaction[] { negative[1] }));
+        assertEquals(1, chain.getTransactionPool().size());
+
+    }
+
+    @Test
+    public void testAdmissionRacingABlockIsRetried() throws Exception {
+        this.genesisSetUp();
+
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(10, users.get(1).getPublic());
+        a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        // Conflicts with a
+        Transaction b = new Transaction();
+        b.addInput(genesis.getCoinbase().getHash(), 0);
+        b.addOutput(20, users.get(2).getPublic());
+        b.addSignature(sign(users.get(0), b.getRawDataToSign(0)), 0);
+        b.finalize();
+
+        // Resolved against the tip before the block confirming a connects, inserted after it
+        TransactionPool pool = chain.getTransactionPool();
+        long generation = pool.getTipGeneration();
+        UTXOPool tip = chain.getMaxHeightUTXOPool();
+        Block second = new Block(genesis.getHash(), users.get(1).getPublic());
+        second.addTransaction(a);
+        second.finalize();
+        assertTrue(chain.addBlock(second));
+
+        RejectionCounters rejections = new RejectionCounters();
+        MempoolAdmission admission = new MempoolAdmission(pool, null, null, rejections);
+        assertArrayEquals(new ValidationResult[] { ValidationResult.STALE_TIP, ValidationResult.STALE_TIP },
+                admission.admit(tip, generation, new Transaction[] { a, b }));
+        assertEquals(0, pool.size());
+        assertEquals(0, rejections.total());
+
+        // Validated again against the new tip, where the output they claim is spent
+        assertArrayEquals(new ValidationResult[] { ValidationResult.MISSING_INPUT, ValidationResult.MISSING_INPUT },
+                chain.addTransactions(new Transaction[] { a, b }));
+        assertEquals(0, pool.size());
+
+    }
+
+    @Test
+    public void testTransactionPoolOrdersByFeeRate() throws Exception {
+        this.genesisSetUp();
+
+        Transaction a = new Transaction();
+        a.addInput(genesis.getCoinbase().getHash(), 0);
+        a.addOutput(Block.COINBASE - 1000, users.get(1).getPublic());
+        a.addSignature(sign(users.get(0), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        // Spends the pooled a, so its fee is computed against a's output
+        Transaction b = new Transaction();
+        b.addInput(a.getHash(), 0);
+        b.addOutput(Block.COINBASE - 1000 - 5 * Transaction.COIN, users.get(2).getPublic());
+        b.addSignature(sign(users.get(1), b.getRawDataToSign(0)), 0);
+        b.finalize();
+
+        chain.addTransaction(a);
+        chain.addTransaction(b);
+
+        TransactionPool pool = chain.getTransactionPool();
+        assertEquals(1000, pool.getFee(a.getHash()));
+        assertEquals(5 * Transaction.COIN, pool.getFee(b.getHash()));
+        assertEquals(Arrays.asList(b, a), pool.getTopTransactions(5));
+        assertEquals(Arrays.asList(b), pool.getTopTransactions(1));
+
+        pool.removeTransaction(b.getHash());
+        assertEquals(Arrays.asList(a), pool.getTopTransactions(5));
+        assertEquals(-1, pool.getFee(b.getHash()));
+
+    }
+
+    @Test
+    public void testTransactionPoolEvictsLowestFeeRateOverBudget() throws Exception {
+        this.setUp();
+
+        // Transactions of equal size spending distinct outputs
+        Transaction[] txs = new Transaction[4];
+        for (int i = 0; i < txs.length; i++) {
+            byte[] prevTxHash = new byte[32];
+            prevTxHash[0] = (byte) i;
+            txs[i] = new Transaction();
+            txs[i].addInput(prevTxHash, 0);
+            txs[i].addOutput(10, users.get(1).getPublic());
+            txs[i].finalize();
+        }
+
+        TransactionPool unbounded = new TransactionPool(Long.MAX_VALUE);
+        unbounded.addTransaction(txs[0], 0);
+        long entryBytes = unbounded.getBytes();
+
+        // Room for two transactions
+        TransactionPool pool = new TransactionPool(2 * entryBytes + entryBytes / 2);
+        assertTrue(pool.addTransaction(txs[0], 100));
+        assertTrue(pool.addTransaction(txs[1], 300));
+        assertEquals(0, pool.getMinFeeRate());
+
+        // The lowest fee rate makes room and the floor rises above it
+        assertTrue(pool.addTransaction(txs[2], 200));
+        assertNull(pool.getTransaction(txs[0].getHash()));
+        assertEquals(2, pool.size());
+        assertEquals(2 * entryBytes, pool.getBytes());
+        assertEquals(1, pool.getEvictions());
+        assertTrue(pool.getMinFeeRate() > 100 * 1000 / txs[0].getRawTxSize());
+        assertFalse(pool.addTransaction(txs[3], 100));
+
+        // Emptying the pool drops the floor again
+        pool.removeTransaction(txs[1].getHash());
+        pool.removeTransaction(txs[2].getHash());
+        assertEquals(0, pool.getBytes());
+        assertEquals(0, pool.getMinFeeRate());
+        assertTrue(pool.addTransaction(txs[3], 100));
+
+    }
+
+    @Test
+    public void testEvictionKeepsChildPayingForParent() throws Exception {
+        this.setUp();
+
+        // A parent paying little, its child paying a lot, and two others; all of equal size
+        byte[][] roots = new byte[3][32];
+        for (int i = 0; i < roots.length; i++)
+            roots[i][0] = (byte) (i + 1);
+        Transaction parent = new Transaction();
+        parent.addInput(roots[0], 0);
+        parent.addOutput(10, users.get(1).getPublic());
+        parent.finalize();
+        Transaction child = new Transaction();
+        child.addInput(parent.getHash(), 0);
+        child.addOutput(10, users.get(1).getPublic());
+        child.finalize();
+        Transaction[] others = new Transaction[2];
+        for (int i = 0; i < others.length; i++) {
+            others[i] = new Transaction();
+            others[i].addInput(roots[i + 1], 0);
+            others[i].addOutput(10, users.get(1).getPublic());
+            others[i].finalize();
+        }
+
+        TransactionPool unbounded = new TransactionPool(Long.MAX_VALUE);
+        unbounded.addTransaction(parent, 0);
+        long entryBytes = unbounded.getBytes();
+
+        // Room for three transactions
+        TransactionPool pool = new TransactionPool(3 * entryBytes + entryBytes / 2);
+        assertTrue(pool.addTransaction(parent, 100));
+        assertTrue(pool.addTransaction(child, 1000));
+        assertTrue(pool.addTransaction(others[0], 300));
+
+        // The parent pays least on its own, but with its child more than the newcomer
+        assertFalse(pool.addTransaction(others[1], 200));
+        assertNotNull(pool.getTransaction(parent.getHash()));
+        assertNotNull(pool.getTransaction(child.getHash()));
+        assertEquals(3, pool.size());
+        assertEquals(1, pool.getEvictions());
+        assertTrue(pool.getMinFeeRate() > 200 * 1000 / others[1].getRawTxSize());
+        assertEquals(Arrays.asList(parent, child, others[0]), pool.getBlockTemplate(3));
+
+    }
+
+    @Test
+    public void testConcurrentAddsWithConsistentSnapshots() throws Exception {
+        this.setUp();
+
+        // Each thread adds a chain of transactions, each spending the one before; the first
+        // transaction of every chain also claims an output shared by all chains
+        int threads = 4;
+        int length = 200;
+        byte[] shared = new byte[32];
+        Transaction[][] chains = new Transaction[threads][length];
+        for (int t = 0; t < threads; t++) {
+            for (int j = 0; j < length; j++) {
+                Transaction tx = new Transaction();
+                if (j == 0) {
+                    byte[] root = new byte[32];
+                    root[0] = (byte) (t + 1);
+                    tx.addInput(root, 0);
+                    tx.addInput(shared, 0);
+                } else {
+                    tx.addInput(chains[t][j - 1].getHash(), 0);
+                }
+                tx.addOutput(length - j, users.get(t).getPublic());
+                tx.finalize();
+                chains[t][j] = tx;
+            }
+        }
+
+        TransactionPool pool = new TransactionPool(Long.MAX_VALUE);
+        ValidationResult[] first = new ValidationResult[threads];
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int chain = t;
+            producers[t] = new Thread(() -> {
+                try {
+                    first[chain] = pool.admit(chains[chain][0], 1, Arrays.asList());
+                    for (int j = 1; j < length; j++)
+                        pool.admit(chains[chain][j], j + 1, Arrays.asList(chains[chain][j - 1].getHash()));
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            producers[t].start();
+        }
+
+        // Children pay more than their parents, so an inconsistent snapshot would show a child alone
+        int snapshots = 0;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread producer : producers)
+                running |= producer.isAlive();
+            HashSet<ByteArrayWrapper> seen = new HashSet<>();
+            ArrayList<Transaction> snapshot = pool.getTopTransactions(Integer.MAX_VALUE);
+            for (Transaction tx : snapshot)
+                seen.add(new ByteArrayWrapper(tx.getHash()));
+            for (Transaction tx : snapshot) {
+                byte[] parent = tx.getInput(0).prevTxHash;
+                assertTrue(tx.numInputs() == 2 || seen.contains(new ByteArrayWrapper(parent)));
+            }
+            snapshots++;
+        }
+        for (Thread producer : producers)
+            producer.join();
+        assertTrue(failures.isEmpty());
+        assertTrue(snapshots > 0);
+
+        // Only one chain gets to claim the shared output, and the others stop at their first transaction
+        int admitted = 0;
+        for (int t = 0; t < threads; t++) {
+            if (first[t] == ValidationResult.VALID) {
+                admitted++;
+                for (Transaction tx : chains[t])
+                    assertNotNull(pool.getTransaction(tx.getHash()));
+            } else {
+                assertEquals(ValidationResult.DOUBLE_SPEND, first[t]);
+                assertNull(pool.getTransaction(chains[t][1].getHash()));
+            }
+        }
+        assertEquals(1, admitted);
+        assertEquals(length, pool.size());
+        assertEquals(1, pool.getSpenders(new UTXO(shared, 0)).size());
+
+    }
+
+    @Test
+    public void testChildPaysForParentInBlockTemplate() throws Exception {
+        this.setUp();
+
+        byte[][] roots = new byte[2][32];
+        roots[0][0] = 1;
+        roots[1][0] = 2;
+        Transaction parent = new Transaction();
+        parent.addInput(roots[0], 0);
+        parent.addOutput(10, users.get(1).getPublic());
+        parent.finalize();
+        Transaction child = new Transaction();
+        child.addInput(parent.getHash(), 0);
+        child.addOutput(10, users.get(2).getPublic());
+        child.finalize();
+        Transaction other = new Transaction();
+        other.addInput(roots[1], 0);
+        other.addOutput(10, users.get(3).getPublic());
+        other.finalize();
+
+        TransactionPool pool = new TransactionPool(Long.MAX_VALUE);
+        assertTrue(pool.addTransaction(parent, 10));
+        assertTrue(pool.addTransaction(child, 10000));
+        assertTrue(pool.addTransaction(other, 1000));
+
+        assertEquals(10010, pool.getAncestorFee(child.getHash()));
+        assertEquals(2, pool.getAncestorCount(child.getHash()));
+        assertEquals(10010, pool.getDescendantFee(parent.getHash()));
+        assertEquals(parent.getRawTxSize() + child.getRawTxSize(), pool.getDescendantSize(parent.getHash()));
+
+        // The child lifts its parent above the other transaction, which alone pays more than the parent
+        assertEquals(Arrays.asList(child, other), pool.getTopTransactions(2));
+        assertEquals(Arrays.asList(parent, child), pool.getBlockTemplate(2));
+        assertEquals(Arrays.asList(parent, child, other), pool.getBlockTemplate(3));
+        // A package that does not fit makes room for a smaller one
+        assertEquals(Arrays.asList(other), pool.getBlockTemplate(1));
+
+        Transaction grandchild = new Transaction();
+        grandchild.addInput(child.getHash(), 0);
+        grandchild.addOutput(10, users.get(4).getPublic());
+        grandchild.finalize();
+        assertTrue(pool.addTransaction(grandchild, 1));
+        assertEquals(3, pool.getAncestorCount(grandchild.getHash()));
+        assertEquals(10011, pool.getDescendantFee(parent.getHash()));
+
+        // Confirming the parent takes it out of the totals of its descendants
+        pool.removeConfirmed(new Transaction[] { parent });
+        assertEquals(10000, pool.getAncestorFee(child.getHash()));
+        assertEquals(1, pool.getAncestorCount(child.getHash()));
+        assertEquals(10001, pool.getAncestorFee(grandchild.getHash()));
+        assertEquals(10001, pool.getDescendantFee(child.getHash()));
+        assertEquals(0, pool.getDescendantCount(parent.getHash()));
+        assertEquals(Arrays.asList(child, other, grandchild), pool.getBlockTemplate(3));
+
+    }
+
+    @Test
+    public void testBlockTemplateTakesEachTransactionOnce() throws Exception {
+        this.setUp();
+
+        byte[] root = new byte[32];
+        root[0] = 1;
+        Transaction a = new Transaction();
+        a.addInput(root, 0);
+        a.addOutput(10, users.get(1).getPublic());
+        a.finalize();
+        Transaction b = new Transaction();
+        b.addInput(a.getHash(), 0);
+        b.addOutput(10, users.get(2).getPublic());
+        b.finalize();
+        Transaction c = new Transaction();
+        c.addInput(b.getHash(), 0);
+        c.addOutput(10, users.get(3).getPublic());
+        c.finalize();
+
+        TransactionPool pool = new TransactionPool(Long.MAX_VALUE);
+        assertTrue(pool.addTransaction(a, 1000000));
+        assertTrue(pool.addTransaction(b, 1));
+        assertTrue(pool.addTransaction(c, 100000));
+
+        // Once a is taken, c's package is chosen from the modified totals and takes b along
+        assertEquals(Arrays.asList(a, b, c), pool.getBlockTemplate(10));
+        assertEquals(Arrays.asList(a), pool.getBlockTemplate(1));
+
+    }
+
+    @Test
+    public void testReorgReturnsDisconnectedTransactionsToPool() throws Exception {
+        this.genesisSetUp();
+
+        // A common block splits the genesis coinbase into two outputs of user 1
+        Transaction split = new Transaction();
+        split.addInput(genesis.getCoinbase().getHash(), 0);
+        split.addOutput(10, users.get(1).getPublic());
+        split.addOutput(10, users.get(1).getPublic());
+        split.addSignature(sign(users.get(0), split.getRawDataToSign(0)), 0);
+        split.finalize();
+        Block common = new Block(genesis.getHash(), users.get(0).getPublic());
+        common.addTransaction(split);
+        common.finalize();
+        assertTrue(chain.addBlock(common));
+
+        // The main branch spends both outputs in a and a2
+        Transaction a = new Transaction();
+        a.addInput(split.getHash(), 0);
+        a.addOutput(10, users.get(2).getPublic());
+        a.addSignature(sign(users.get(1), a.getRawDataToSign(0)), 0);
+        a.finalize();
+        Transaction a2 = new Transaction();
+        a2.addInput(split.getHash(), 1);
+        a2.addOutput(10, users.get(2).getPublic());
+        a2.addSignature(sign(users.get(1), a2.getRawDataToSign(0)), 0);
+        a2.finalize();
+        Block mainBlock = new Block(common.getHash(), users.get(3).getPublic());
+        mainBlock.addTransaction(a);
+        mainBlock.addTransaction(a2);
+        mainBlock.finalize();
+        assertTrue(chain.addBlock(mainBlock));
+
+        // Pooled c spends a, and pooled k spends the coinbase of the main block
+        Transaction c = new Transaction();
+        c.addInput(a.getHash(), 0);
+        c.addOutput(5, users.get(4).getPublic());
+        c.addSignature(sign(users.get(2), c.getRawDataToSign(0)), 0);
+        c.finalize();
+        Transaction k = new Transaction();
+        k.addInput(mainBlock.getCoinbase().getHash(), 0);
+        k.addOutput(5, users.get(4).getPublic());
+        k.addSignature(sign(users.get(3), k.getRawDataToSign(0)), 0);
+        k.finalize();
+        assertArrayEquals(new ValidationResult[] { ValidationResult.VALID, ValidationResult.VALID },
+                chain.addTransactions(new Transaction[] { c, k }));
+
+        // A fork spends the second output in b, conflicting with a2; a side branch leaves the pool alone
+        Transaction b = new Transaction();
+        b.addInput(split.getHash(), 1);
+        b.addOutput(10, users.get(5).getPublic());
+        b.addSignature(sign(users.get(1), b.getRawDataToSign(0)), 0);
+        b.finalize();
+        Block forkBlock = new Block(common.getHash(), users.get(5).getPublic());
+        forkBlock.addTransaction(b);
+        forkBlock.finalize();
+        assertTrue(chain.addBlock(forkBlock));
+        TransactionPool pool = chain.getTransactionPool();
+        assertEquals(2, pool.size());
+
+        // The fork overtakes: a returns with its child c, a2 conflicts with b and k lost its input
+        Block forkNext = new Block(forkBlock.getHash(), users.get(6).getPublic());
+        forkNext.finalize();
+        assertTrue(chain.addBlock(forkNext));
+        assertEquals(forkNext.getHash(), chain.getMaxHeightBlock().getHash());
+        assertEquals(2, pool.size());
+        assertNotNull(pool.getTransaction(a.getHash()));
+        assertNotNull(pool.getTransaction(c.getHash()));
+        assertNull(pool.getTransaction(a2.getHash()));
+        assertNull(pool.getTransaction(k.getHash()));
+        assertEquals(2, pool.getAncestorCount(c.getHash()));
+        assertEquals(Arrays.asList(a, c), pool.getBlockTemplate(2));
+
+        // The next block takes them from the pool onto the new main branch
+        Block next = handler.createBlock(users.get(7).getPublic());
+        assertNotNull(next);
+        assertEquals(Arrays.asList(a, c), next.getTransactions());
+        assertEquals(0, pool.size());
+
+    }
+
+}